@@ -0,0 +1,44 @@
+package nachos.bench;
+
+import nachos.threads.ThreadedKernel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks <tt>Alarm.waitUntil()</tt> with no other thread ready, so the
+ * kernel idles until the timer interrupt wakes the sleeper. This is where
+ * <tt>Interrupt.ticklessIdle</tt> makes a difference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AlarmBenchmark {
+    @Param({"bench", "ticklessIdle"})
+    public String config;
+
+    @Setup
+    public void setup() {
+	BenchMachine.start(config);
+    }
+
+    /**
+     * Sleep for a fixed number of ticks.
+     */
+    @Benchmark
+    public void waitUntil() {
+	BenchMachine.run(sleep);
+    }
+
+    private static final Runnable sleep = new Runnable() {
+	    public void run() {
+		ThreadedKernel.alarm.waitUntil(sleepTicks);
+	    }
+	};
+
+    private static final long sleepTicks = 2000;
+}
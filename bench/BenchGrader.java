@@ -0,0 +1,29 @@
+package nachos.bench;
+
+import nachos.security.*;
+import nachos.ag.AutoGrader;
+
+/**
+ * The autograder used by <tt>BenchMachine</tt>. It runs the kernel like the
+ * default autograder, and hands the privilege it is started with to
+ * <tt>BenchMachine</tt>.
+ */
+public class BenchGrader extends AutoGrader {
+    /**
+     * Allocate a new benchmark autograder.
+     */
+    public BenchGrader() {
+    }
+
+    /**
+     * Start this autograder, after giving its privilege to
+     * <tt>BenchMachine</tt>.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     * 				machine.
+     */
+    public void start(Privilege privilege) {
+	BenchMachine.givePrivilege(privilege);
+	super.start(privilege);
+    }
+}
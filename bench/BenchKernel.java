@@ -0,0 +1,29 @@
+package nachos.bench;
+
+import nachos.threads.ThreadedKernel;
+
+/**
+ * The kernel run by <tt>BenchMachine</tt>. Instead of running tests, its main
+ * thread runs the actions requested by the benchmarks.
+ */
+public class BenchKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchKernel() {
+	super();
+    }
+
+    /**
+     * The benchmarks are the tests.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run the benchmarks' actions. Never returns.
+     */
+    public void run() {
+	BenchMachine.serve();
+    }
+}
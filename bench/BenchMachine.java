@@ -0,0 +1,193 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.KThread;
+
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * A Nachos machine for the benchmarks. It is built by <tt>Machine.main()</tt>,
+ * security manager and all, from a configuration file in <tt>bench/</tt>, and
+ * runs <tt>BenchKernel</tt> in the first Nachos thread, which never returns.
+ * The benchmark threads are not Nachos threads, so anything that uses
+ * threads, interrupts, or the processor is handed to the Nachos main thread
+ * with <tt>run()</tt>.
+ *
+ * <p>
+ * <tt>bench/bench.conf</tt> leaves every optional execution mode off, so its
+ * results can be compared across commits. Each mode is benchmarked with its
+ * own configuration file, such as <tt>bench/blockTranslation.conf</tt>; a
+ * commit that predates a mode ignores its key and runs the baseline.
+ *
+ * <p>
+ * The benchmarks must be run from a project directory, like Nachos itself.
+ */
+public final class BenchMachine {
+    /**
+     * Prevent instantiation.
+     */
+    private BenchMachine() {
+    }
+
+    /**
+     * Start the machine and the kernel with <tt>bench/bench.conf</tt>, if
+     * this has not been done yet.
+     */
+    public static void start() {
+	start("bench");
+    }
+
+    /**
+     * Start the machine and the kernel with <tt>bench/<i>name</i>.conf</tt>,
+     * if this has not been done yet. There is only one machine, so every
+     * call must name the same configuration; JMH starts a new JVM for each
+     * benchmark and parameter.
+     *
+     * @param	name	the name of the configuration file, without
+     *			<tt>.conf</tt>.
+     */
+    public static void start(String name) {
+	if (configName != null) {
+	    Lib.assertTrue(name.equals(configName),
+			   "machine already started with " + configName);
+	    return;
+	}
+
+	configName = name;
+
+	final String[] args = new String[] {
+	    "-[]", "../bench/" + name + ".conf",
+	    "--", BenchGrader.class.getName()
+	};
+
+	Thread nachosThread = new Thread(new Runnable() {
+		public void run() { Machine.main(args); }
+	    }, "nachos");
+
+	// TCBs started by this thread inherit this, so they never keep the
+	// JVM alive
+	nachosThread.setDaemon(true);
+	nachosThread.start();
+
+	// wait for the kernel to start serving
+	run(new Runnable() {
+		public void run() { }
+	    });
+    }
+
+    /**
+     * Run the specified action in the Nachos main thread, and wait for it to
+     * finish. Anything it throws is rethrown here.
+     *
+     * @param	action	the action to run.
+     */
+    public static void run(Runnable action) {
+	Object result;
+
+	try {
+	    requests.put(action);
+	    result = results.take();
+	}
+	catch (InterruptedException e) {
+	    throw new RuntimeException(e);
+	}
+
+	if (result instanceof RuntimeException)
+	    throw (RuntimeException) result;
+	if (result instanceof Error)
+	    throw (Error) result;
+	if (result != finished)
+	    throw new RuntimeException((Throwable) result);
+    }
+
+    /**
+     * Called by <tt>BenchGrader</tt> with the privilege the machine starts it
+     * with.
+     */
+    static void givePrivilege(Privilege privilege) {
+	BenchMachine.privilege = privilege;
+    }
+
+    /**
+     * Tell the autograder that the current TCB is running the specified
+     * thread. Required before any raw <tt>TCB.contextSwitch()</tt>.
+     *
+     * @param	thread	the thread the current TCB belongs to.
+     */
+    static void associateThread(KThread thread) {
+	privilege.tcb.associateThread(thread);
+    }
+
+    /**
+     * Run actions from <tt>run()</tt> forever. Called by
+     * <tt>BenchKernel.run()</tt> in the Nachos main thread.
+     */
+    static void serve() {
+	while (true) {
+	    Runnable action;
+	    Object result = finished;
+
+	    try {
+		action = requests.take();
+	    }
+	    catch (InterruptedException e) {
+		continue;
+	    }
+
+	    try {
+		action.run();
+	    }
+	    catch (Throwable e) {
+		result = e;
+	    }
+
+	    try {
+		results.put(result);
+	    }
+	    catch (InterruptedException e) {
+		Lib.assertNotReached();
+	    }
+	}
+    }
+
+    /**
+     * A privilege that performs every action directly, for benchmarks of a
+     * single device that run without a machine or a security manager.
+     */
+    static class BenchPrivilege extends Privilege {
+	public void doPrivileged(Runnable action) {
+	    action.run();
+	}
+
+	public Object doPrivileged(PrivilegedAction action) {
+	    return action.run();
+	}
+
+	public Object doPrivileged(PrivilegedExceptionAction action)
+	    throws PrivilegedActionException {
+	    try {
+		return action.run();
+	    }
+	    catch (Exception e) {
+		throw new PrivilegedActionException(e);
+	    }
+	}
+
+	public void exit(int exitStatus) {
+	    System.exit(exitStatus);
+	}
+    }
+
+    private static String configName = null;
+    private static Privilege privilege = null;
+
+    private static final SynchronousQueue<Runnable> requests =
+	new SynchronousQueue<Runnable>();
+    private static final SynchronousQueue<Object> results =
+	new SynchronousQueue<Object>();
+    private static final Object finished = new Object();
+}
@@ -0,0 +1,59 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks scheduling and servicing interrupts, with a number of other
+ * interrupts pending far in the future, like the timer and the devices'
+ * interrupts in a running machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InterruptBenchmark {
+    @Param({"1", "16", "256"})
+    public int numPending;
+
+    @Setup
+    public void setup() {
+	privilege = new BenchMachine.BenchPrivilege();
+	privilege.stats = new Stats();
+	new Interrupt(privilege);
+
+	for (int i=0; i<numPending; i++)
+	    privilege.interrupt.schedule(farFuture + i, "pending", handler);
+    }
+
+    /**
+     * Schedule an interrupt for the next tick, and tick to service it.
+     */
+    @Benchmark
+    public void scheduleAndTick() {
+	privilege.interrupt.schedule(Stats.KernelTick, "bench", handler);
+	privilege.interrupt.tick(true);
+    }
+
+    /**
+     * Tick with no interrupt due.
+     */
+    @Benchmark
+    public void tick() {
+	privilege.interrupt.tick(false);
+    }
+
+    private Privilege privilege;
+
+    private static final long farFuture = Long.MAX_VALUE/2;
+
+    private static final Runnable handler = new Runnable() {
+	    public void run() { }
+	};
+}
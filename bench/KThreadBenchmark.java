@@ -0,0 +1,60 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks <tt>KThread.yield()</tt> under <tt>RoundRobinScheduler</tt>. A
+ * second thread yields in a loop, so each yield by the main thread is a round
+ * trip of two context switches. Timer interrupts preempt both threads, as
+ * they do in a running kernel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class KThreadBenchmark {
+    @Setup
+    public void setup() {
+	BenchMachine.start();
+	BenchMachine.run(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(ThreadedKernel.scheduler
+				   instanceof RoundRobinScheduler,
+				   "bench.conf must use RoundRobinScheduler");
+
+		    KThread yielder = new KThread(new Runnable() {
+			    public void run() {
+				while (true)
+				    KThread.yield();
+			    }
+			});
+		    yielder.setName("yielder").fork();
+		}
+	    });
+    }
+
+    /**
+     * Yield to the other thread and back.
+     */
+    @Benchmark
+    @OperationsPerInvocation(yieldsPerInvocation)
+    public void yieldRoundTrip() {
+	BenchMachine.run(yields);
+    }
+
+    private static final Runnable yields = new Runnable() {
+	    public void run() {
+		for (int i=0; i<yieldsPerInvocation; i++)
+		    KThread.yield();
+	    }
+	};
+
+    private static final int yieldsPerInvocation = 1000;
+}
@@ -0,0 +1,67 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks the <tt>Lib</tt> helpers used to read memory and decode
+ * instructions, over one page of random words.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LibBenchmark {
+    @Setup
+    public void setup() {
+	Random random = new Random(0);
+
+	bytes = new byte[Processor.pageSize];
+	random.nextBytes(bytes);
+
+	words = new int[Processor.pageSize/4];
+	for (int i=0; i<words.length; i++)
+	    words[i] = random.nextInt();
+    }
+
+    /**
+     * Convert each word of the page with <tt>Lib.bytesToInt()</tt>.
+     */
+    @Benchmark
+    @OperationsPerInvocation(wordsPerPage)
+    public int bytesToInt() {
+	int sum = 0;
+	for (int i=0; i<bytes.length; i+=4)
+	    sum += Lib.bytesToInt(bytes, i);
+	return sum;
+    }
+
+    /**
+     * Extract the fields of each word with <tt>Lib.extract()</tt>, the way
+     * the processor decodes an instruction.
+     */
+    @Benchmark
+    @OperationsPerInvocation(wordsPerPage)
+    public int extract() {
+	int sum = 0;
+	for (int i=0; i<words.length; i++) {
+	    int value = words[i];
+	    sum += Lib.extract(value, 26, 6) + Lib.extract(value, 0, 6) +
+		Lib.extract(value, 21, 5) + Lib.extract(value, 16, 5) +
+		Lib.extract(value, 11, 5) + Lib.extract(value, 6, 5) +
+		Lib.extract(value, 0, 16) + Lib.extract(value, 0, 26);
+	}
+	return sum;
+    }
+
+    private byte[] bytes;
+    private int[] words;
+
+    private static final int wordsPerPage = Processor.pageSize/4;
+}
@@ -0,0 +1,181 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.ThreadedKernel;
+
+import java.io.EOFException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks the processor running a user program from start to
+ * <tt>exit()</tt>, using the same configuration as project 2, in the baseline
+ * interpreter and in each of the processor's optional modes. The program is
+ * loaded once, and its memory is restored from a copy before each run, so
+ * every run executes the same instructions. Only the <tt>write()</tt> and
+ * <tt>exit()</tt> system calls are supported, and <tt>write()</tt> discards
+ * its output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ProcessorBenchmark {
+    @Param({"matmult.coff", "sort.coff"})
+    public String program;
+
+    @Param({"bench", "blockTranslation", "batchTicks"})
+    public String config;
+
+    @Setup
+    public void setup() {
+	BenchMachine.start(config);
+	BenchMachine.run(new Runnable() {
+		public void run() { load(); }
+	    });
+    }
+
+    /**
+     * Run the program once.
+     *
+     * @return	the program's exit status.
+     */
+    @Benchmark
+    public int run() {
+	BenchMachine.run(execute);
+	return exitStatus;
+    }
+
+    private void load() {
+	Processor processor = Machine.processor();
+
+	OpenFile executable = ThreadedKernel.fileSystem.open(program, false);
+	Lib.assertTrue(executable != null, "cannot open " + program);
+
+	Coff coff = null;
+	try {
+	    coff = new Coff(executable);
+	}
+	catch (EOFException e) {
+	    Lib.assertNotReached("not a COFF file: " + program);
+	}
+
+	numPages = 0;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    Lib.assertTrue(section.getFirstVPN() == numPages,
+			   "fragmented executable");
+	    numPages += section.getLength();
+	}
+
+	// stack pages, then a page for the (empty) arguments
+	numPages += stackPages + 1;
+	Lib.assertTrue(numPages <= processor.getNumPhysPages(),
+		       "insufficient physical memory");
+
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, vpn, true, false,
+						  false, false);
+
+	// identity mapped, so virtual pages are also physical pages
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+		pageTable[vpn].readOnly = section.isReadOnly();
+		section.loadPage(i, vpn);
+	    }
+	}
+
+	entryPoint = coff.getEntryPoint();
+	coff.close();
+
+	// the stack and arguments start out empty
+	image = new byte[numPages*Processor.pageSize];
+	int sectionsLength = (numPages-stackPages-1)*Processor.pageSize;
+	processor.readPhysicalMemory(0, image, 0, sectionsLength);
+
+	processor.setExceptionHandler(new Runnable() {
+		public void run() { handleException(); }
+	    });
+    }
+
+    private void execute() {
+	Processor processor = Machine.processor();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn].used = false;
+	    pageTable[vpn].dirty = false;
+	}
+
+	processor.writePhysicalMemory(0, image, 0, image.length);
+	processor.setPageTable(pageTable);
+
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, 0);
+	processor.writeRegister(Processor.regPC, entryPoint);
+	processor.writeRegister(Processor.regSP,
+				(numPages-1)*Processor.pageSize);
+	processor.writeRegister(Processor.regA1,
+				(numPages-1)*Processor.pageSize);
+
+	try {
+	    processor.run();
+	}
+	catch (ProgramExit e) {
+	    exitStatus = e.status;
+	}
+    }
+
+    private void handleException() {
+	Processor processor = Machine.processor();
+	int cause = processor.readRegister(Processor.regCause);
+
+	Lib.assertTrue(cause == Processor.exceptionSyscall,
+		       "unexpected " + Processor.exceptionNames[cause]);
+
+	switch (processor.readRegister(Processor.regV0)) {
+	case syscallExit:
+	    throw new ProgramExit(processor.readRegister(Processor.regA0));
+	case syscallWrite:
+	    processor.writeRegister(Processor.regV0,
+				    processor.readRegister(Processor.regA2));
+	    processor.advancePC();
+	    break;
+	default:
+	    Lib.assertNotReached("unsupported syscall");
+	}
+    }
+
+    /**
+     * Thrown by the exception handler to return from
+     * <tt>Processor.run()</tt> when the program exits.
+     */
+    private static class ProgramExit extends RuntimeException {
+	ProgramExit(int status) {
+	    super(null, null, false, false);
+	    this.status = status;
+	}
+
+	int status;
+
+	private static final long serialVersionUID = 1L;
+    }
+
+    private byte[] image;
+    private int entryPoint;
+    private int numPages;
+    private TranslationEntry[] pageTable;
+    private int exitStatus;
+
+    private final Runnable execute = new Runnable() {
+	    public void run() { execute(); }
+	};
+
+    private static final int stackPages = 8;
+    private static final int syscallExit = 1, syscallWrite = 7;
+}
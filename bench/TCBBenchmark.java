@@ -0,0 +1,67 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.KThread;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks <tt>TCB.contextSwitch()</tt> round trips between the Nachos main
+ * thread and a second TCB that switches straight back, with no scheduler
+ * involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TCBBenchmark {
+    @Setup
+    public void setup() {
+	BenchMachine.start();
+	BenchMachine.run(new Runnable() {
+		public void run() { startPartner(); }
+	    });
+    }
+
+    /**
+     * Switch to the partner TCB and back.
+     */
+    @Benchmark
+    @OperationsPerInvocation(roundTripsPerInvocation)
+    public void contextSwitch() {
+	BenchMachine.run(roundTrips);
+    }
+
+    private void startPartner() {
+	final TCB home = TCB.currentTCB();
+	// never forked; the partner only needs a thread to be associated with
+	final KThread identity = new KThread();
+
+	partner = new TCB();
+	partner.start(new Runnable() {
+		public void run() {
+		    while (true) {
+			BenchMachine.associateThread(identity);
+			home.contextSwitch();
+		    }
+		}
+	    });
+    }
+
+    private TCB partner;
+
+    private final Runnable roundTrips = new Runnable() {
+	    public void run() {
+		for (int i=0; i<roundTripsPerInvocation; i++) {
+		    partner.contextSwitch();
+		    BenchMachine.associateThread(KThread.currentThread());
+		}
+	    }
+	};
+
+    private static final int roundTripsPerInvocation = 1000;
+}
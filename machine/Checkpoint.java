@@ -0,0 +1,321 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves and restores the state of the simulated machine, so that many runs
+ * can start from the state reached after loading a program, without loading
+ * it again.
+ *
+ * <p>
+ * A checkpoint is taken the first time the processor starts running user
+ * code, if <tt>nachos.conf</tt> specifies <tt>Checkpoint.saveFile</tt>. It
+ * contains the processor's registers, physical memory, the page table or
+ * TLB, the statistics, the pending interrupts, and the state of the random
+ * number generator.
+ *
+ * <p>
+ * If <tt>Checkpoint.restoreFile</tt> is specified instead, the checkpoint is
+ * restored at that same point, in a machine started with the same
+ * configuration. Interrupt handlers belong to the running machine's devices,
+ * so pending interrupts are matched by type and only their times are
+ * restored.
+ *
+ * <p>
+ * The kernel saves and restores its own state, such as the page table of
+ * the running process, through the <tt>KernelState</tt> set with
+ * <tt>setKernelState()</tt>. Its state is restored before the machine's, so
+ * it can set up the page table that the processor's translations are
+ * restored into. Interrupts are disabled while a checkpoint is saved or
+ * restored.
+ */
+public final class Checkpoint {
+    /**
+     * Prevent instantiation.
+     */
+    private Checkpoint() {
+    }
+
+    /**
+     * The part of a checkpoint that belongs to the kernel.
+     */
+    public interface KernelState {
+	/**
+	 * Write the kernel's state to a checkpoint being saved.
+	 *
+	 * @param	out	the checkpoint.
+	 */
+	public void save(DataOutputStream out) throws IOException;
+
+	/**
+	 * Read the kernel's state back from a checkpoint being restored, in
+	 * place of the state the kernel has built so far.
+	 *
+	 * @param	in	the checkpoint.
+	 */
+	public void restore(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Set the kernel state saved and restored with checkpoints.
+     *
+     * @param	state	the kernel's state, or <tt>null</tt> if the kernel has
+     *			none.
+     */
+    public static void setKernelState(KernelState state) {
+	kernelState = state;
+    }
+
+    /**
+     * Write a translation entry to a checkpoint.
+     *
+     * @param	out	the checkpoint.
+     * @param	entry	the entry to write.
+     */
+    public static void writeEntry(DataOutputStream out,
+				  TranslationEntry entry) throws IOException {
+	out.writeInt(entry.vpn);
+	out.writeInt(entry.ppn);
+	out.writeBoolean(entry.valid);
+	out.writeBoolean(entry.readOnly);
+	out.writeBoolean(entry.used);
+	out.writeBoolean(entry.dirty);
+    }
+
+    /**
+     * Read a translation entry written by <tt>writeEntry()</tt>.
+     *
+     * @param	in	the checkpoint.
+     * @return	the entry.
+     */
+    public static TranslationEntry readEntry(DataInputStream in)
+	throws IOException {
+	return new TranslationEntry(in.readInt(), in.readInt(),
+				    in.readBoolean(), in.readBoolean(),
+				    in.readBoolean(), in.readBoolean());
+    }
+
+    /**
+     * Called by the processor whenever it starts running user code. The
+     * first time, restores or saves a checkpoint if one is configured.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    static void processorStarting(final Privilege privilege) {
+	if (started)
+	    return;
+
+	final String restoreFile = Config.getString("Checkpoint.restoreFile");
+	final String saveFile = Config.getString("Checkpoint.saveFile");
+
+	started = true;
+
+	if (restoreFile == null && saveFile == null)
+	    return;
+
+	// kernel code must not be interrupted halfway through its state
+	boolean intStatus = Machine.interrupt().disable();
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			if (restoreFile != null)
+			    restore(privilege, restoreFile);
+			if (saveFile != null)
+			    save(privilege, saveFile);
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("checkpoint failed: " + e);
+		    }
+		}
+	    });
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static void save(Privilege privilege, String fileName)
+	throws IOException {
+	Lib.debug(dbgCheckpoint, "saving checkpoint to " + fileName);
+
+	DataOutputStream out =
+	    new DataOutputStream(new GZIPOutputStream(
+		new FileOutputStream(fileName)));
+
+	Processor processor = Machine.processor();
+	Stats stats = privilege.stats;
+
+	out.writeInt(magic);
+
+	// kernel
+	out.writeBoolean(kernelState != null);
+	if (kernelState != null)
+	    kernelState.save(out);
+
+	// processor
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    out.writeInt(processor.readRegister(i));
+
+	int numPhysPages = processor.getNumPhysPages();
+	byte[] page = new byte[Processor.pageSize];
+
+	out.writeInt(numPhysPages);
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    processor.readPhysicalMemory(ppn*Processor.pageSize, page, 0,
+					 page.length);
+	    out.write(page);
+	}
+
+	TranslationEntry[] translations = getTranslations(processor);
+	out.writeInt(translations == null ? -1 : translations.length);
+	if (translations != null) {
+	    for (int i=0; i<translations.length; i++) {
+		TranslationEntry entry = translations[i];
+		out.writeBoolean(entry != null);
+		if (entry != null)
+		    writeEntry(out, entry);
+	    }
+	}
+
+	// statistics
+	out.writeLong(stats.totalTicks);
+	out.writeLong(stats.kernelTicks);
+	out.writeLong(stats.userTicks);
+	out.writeInt(stats.numDiskReads);
+	out.writeInt(stats.numDiskWrites);
+	out.writeInt(stats.numConsoleReads);
+	out.writeInt(stats.numConsoleWrites);
+	out.writeInt(stats.numPageFaults);
+	out.writeInt(stats.numTLBMisses);
+	out.writeInt(stats.numPacketsSent);
+	out.writeInt(stats.numPacketsReceived);
+
+	// interrupts
+	Machine.interrupt().writePending(out);
+
+	// random number generator
+	out.writeLong(Lib.getRandomState());
+
+	out.close();
+    }
+
+    private static void restore(Privilege privilege, String fileName)
+	throws IOException {
+	Lib.debug(dbgCheckpoint, "restoring checkpoint from " + fileName);
+
+	DataInputStream in =
+	    new DataInputStream(new GZIPInputStream(
+		new FileInputStream(fileName)));
+
+	Processor processor = Machine.processor();
+	Stats stats = privilege.stats;
+
+	Lib.assertTrue(in.readInt() == magic, "not a checkpoint: " + fileName);
+
+	// kernel
+	Lib.assertTrue(in.readBoolean() == (kernelState != null),
+		       "checkpoint is of a different kernel");
+	if (kernelState != null)
+	    kernelState.restore(in);
+
+	// processor
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, in.readInt());
+
+	int numPhysPages = in.readInt();
+	Lib.assertTrue(numPhysPages == processor.getNumPhysPages(),
+		       "checkpoint has a different amount of memory");
+
+	byte[] page = new byte[Processor.pageSize];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    in.readFully(page);
+	    processor.writePhysicalMemory(ppn*Processor.pageSize, page, 0,
+					  page.length);
+	}
+
+	// update the current page table or TLB in place
+	TranslationEntry[] translations = getTranslations(processor);
+	int numEntries = in.readInt();
+	Lib.assertTrue(numEntries ==
+		       (translations == null ? -1 : translations.length),
+		       "checkpoint has a different page table size");
+
+	for (int i=0; i<numEntries; i++) {
+	    if (!in.readBoolean()) {
+		translations[i] = null;
+		continue;
+	    }
+
+	    TranslationEntry entry = readEntry(in);
+	    if (processor.hasTLB())
+		processor.writeTLBEntry(i, entry);
+	    else if (translations[i] == null)
+		translations[i] = entry;
+	    else
+		copyEntry(entry, translations[i]);
+	}
+
+	// statistics
+	long totalTicks = in.readLong();
+	long timeShift = totalTicks - stats.totalTicks;
+
+	stats.totalTicks = totalTicks;
+	stats.kernelTicks = in.readLong();
+	stats.userTicks = in.readLong();
+	stats.numDiskReads = in.readInt();
+	stats.numDiskWrites = in.readInt();
+	stats.numConsoleReads = in.readInt();
+	stats.numConsoleWrites = in.readInt();
+	stats.numPageFaults = in.readInt();
+	stats.numTLBMisses = in.readInt();
+	stats.numPacketsSent = in.readInt();
+	stats.numPacketsReceived = in.readInt();
+
+	// interrupts
+	Machine.interrupt().readPending(in, timeShift);
+
+	// random number generator
+	Lib.setRandomState(in.readLong());
+
+	in.close();
+    }
+
+    private static TranslationEntry[] getTranslations(Processor processor) {
+	if (!processor.hasTLB())
+	    return processor.getPageTable();
+
+	TranslationEntry[] tlb = new TranslationEntry[processor.getTLBSize()];
+	for (int i=0; i<tlb.length; i++)
+	    tlb[i] = processor.readTLBEntry(i);
+	return tlb;
+    }
+
+    private static void copyEntry(TranslationEntry from,
+				  TranslationEntry to) {
+	to.vpn = from.vpn;
+	to.ppn = from.ppn;
+	to.valid = from.valid;
+	to.readOnly = from.readOnly;
+	to.used = from.used;
+	to.dirty = from.dirty;
+    }
+
+    /** <tt>true</tt> once the processor has started running user code. */
+    private static boolean started = false;
+    private static KernelState kernelState = null;
+
+    /** Identifies a checkpoint file. */
+    private static final int magic = 0x4E434B32;
+
+    private static final char dbgCheckpoint = 'h';
+}
@@ -128,6 +128,15 @@ public class CoffSection {
 	return name;
     }
 
+    /**
+     * Test whether this section contains code.
+     *
+     * @return	<tt>true</tt> if this section contains code.
+     */
+    public boolean isExecutable() {
+	return executable;
+    }
+
     /**
      * Test whether this section is read-only.
      *
@@ -180,7 +189,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -190,16 +199,49 @@ public class CoffSection {
 	else if (spn == numPages-1)
 	    /** initlen = size % pageSize; 
 	     *  Bug identified by Steven Schlansker 3/20/08
-	     *  Bug fix by Michael Rauser
+	     *  Bug fix by Michael Rauser, extended to sections of any
+	     *  whole number of pages
 	     */
-	    initlen = (size==pageSize) ? pageSize : (size%pageSize);
+	    initlen = size - spn*pageSize;
 	else
 	    initlen = pageSize;
 
-	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	if (processor.hasMemoryArray()) {
+	    byte[] memory = processor.getMemory();
+	    
+	    if (initlen > 0)
+		Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+
+	    Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	}
+	else {
+	    // the rest of the page is already zero
+	    byte[] page = new byte[pageSize];
+	    
+	    if (initlen > 0)
+		Lib.strictReadFile(file, faddr, page, 0, initlen);
+
+	    processor.writePhysicalMemory(paddr, page, 0, pageSize);
+	}
+    }
+
+    /**
+     * Read the initialized contents of this section from the executable,
+     * with a single read. The first byte of the result belongs at the start
+     * of the section's first page.
+     *
+     * @return	the initialized contents of this section, which are empty if
+     *		this section is not initialized.
+     */
+    public byte[] readContents() {
+	Lib.assertTrue(file != null);
+
+	byte[] contents = new byte[initialized ? size : 0];
+	if (contents.length > 0)
+	    Lib.strictReadFile(file, contentOffset, contents, 0,
+			       contents.length);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	return contents;
     }
 
     /** The COFF object to which this section belongs. */
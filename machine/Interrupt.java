@@ -4,9 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -24,6 +25,7 @@ import java.util.SortedSet;
  * <ul>
  * <li>interrupts are enabled, when they were previously disabled
  * <li>a MIPS instruction is executed
+ * <li>the kernel idles, if <tt>Interrupt.ticklessIdle</tt> is set
  * </ul>
  *
  * <p>
@@ -53,7 +55,12 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[16];
+	numPending = 0;
+	tracing = Lib.test(dbgInt);
+	setNextDue(Long.MAX_VALUE);
+
+	ticklessIdle = Config.getBoolean("Interrupt.ticklessIdle", false);
     }
 
     /**
@@ -120,17 +127,44 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Called by the kernel when it has nothing to run until an interrupt
+     * occurs. Interrupts must be disabled.
+     *
+     * <p>
+     * If <tt>Interrupt.ticklessIdle</tt> is set, advance the simulated time
+     * to the last kernel tick before the next interrupt is due, instead of
+     * letting the kernel spin through every tick until then. The handlers
+     * then run at the same time and in the same order as if it had spun.
+     * Otherwise, or while tracing interrupts, do nothing.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (!ticklessIdle || tracing || numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+
+	// the tick that makes the next interrupt due must go through tick()
+	long ticks = (nextDue - 1 - stats.totalTicks) / Stats.KernelTick;
+	if (ticks > 0) {
+	    stats.kernelTicks += ticks * Stats.KernelTick;
+	    stats.totalTicks += ticks * Stats.KernelTick;
+	}
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = newPendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	addPending(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,6 +179,12 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
+	// most ticks have nothing to do
+	if (stats.totalTicks < tickDue) {
+	    enabled = true;
+	    return;
+	}
+
 	if (Lib.test(dbgInt))
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
@@ -153,6 +193,27 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long userTicksUntilDue() {
+	// tracing prints every tick, so none can be skipped
+	if (tracing)
+	    return 0;
+
+	// the tick that makes the next interrupt due must go through tick()
+	long ticks = (nextDue - 1 - privilege.stats.totalTicks) / Stats.UserTick;
+	return Math.max(ticks, 0);
+    }
+
+    private void tickUser(long numTicks) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += numTicks * Stats.UserTick;
+	stats.totalTicks += numTicks * Stats.UserTick;
+
+	Lib.assertTrue(stats.totalTicks < nextDue);
+
+	enabled = true;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +222,28 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDue > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextDue <= time) {
+	    PendingInterrupt next = removeFirstPending();
 
 	    Lib.assertTrue(next.time <= time);
 
+	    // the event can be reused as soon as we know what to run
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    freePendingInterrupt(next);
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,21 +254,177 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+	
+	for (int i=0; i<sorted.length; i++) {
+	    System.out.println("  " + sorted[i].type +
+			       ", scheduled at " + sorted[i].time);
 	}
 
 	System.out.println("  (end of list)");
     }
 
+    /**
+     * Write the type and time of each pending interrupt, in the order they
+     * will occur. Used by <tt>Checkpoint</tt>.
+     */
+    void writePending(DataOutput out) throws IOException {
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	out.writeInt(sorted.length);
+	for (int i=0; i<sorted.length; i++) {
+	    out.writeUTF(sorted[i].type);
+	    out.writeLong(sorted[i].time);
+	}
+    }
+
+    /**
+     * Restore the times of pending interrupts written by
+     * <tt>writePending()</tt>. Handlers can't be saved, so each saved
+     * interrupt takes over the earliest remaining pending interrupt of the
+     * same type, and saved interrupts with no match are dropped. Pending
+     * interrupts that are not matched keep their delay, shifted by
+     * <i>timeShift</i> ticks. Used by <tt>Checkpoint</tt>.
+     */
+    void readPending(DataInput in, long timeShift) throws IOException {
+	PendingInterrupt[] live = Arrays.copyOf(pending, numPending);
+	Arrays.sort(live);
+
+	Arrays.fill(pending, null);
+	numPending = 0;
+	setNextDue(Long.MAX_VALUE);
+
+	int numSaved = in.readInt();
+	for (int i=0; i<numSaved; i++) {
+	    String type = in.readUTF();
+	    long time = in.readLong();
+
+	    int j = 0;
+	    while (j < live.length &&
+		   (live[j] == null || !live[j].type.equals(type)))
+		j++;
+
+	    if (j == live.length) {
+		Lib.debug(dbgInt, "Dropping the " + type + " interrupt");
+		continue;
+	    }
+
+	    live[j].time = time;
+	    live[j].id = numPendingInterruptsCreated++;
+	    addPending(live[j]);
+	    live[j] = null;
+	}
+
+	for (int j=0; j<live.length; j++) {
+	    if (live[j] != null) {
+		live[j].time += timeShift;
+		live[j].id = numPendingInterruptsCreated++;
+		addPending(live[j]);
+	    }
+	}
+    }
+
+    /**
+     * Return a pending interrupt for the specified event, reusing one from
+     * the free list if possible.
+     */
+    private PendingInterrupt newPendingInterrupt(long time, String type,
+						 Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	
+	if (toOccur == null)
+	    toOccur = new PendingInterrupt();
+	else
+	    freeList = toOccur.nextFree;
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
+	
+	return toOccur;
+    }
+
+    private void freePendingInterrupt(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.nextFree = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add an interrupt to the heap of pending interrupts.
+     */
+    private void addPending(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, numPending*2);
+
+	// sift up
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!pending[parent].after(toOccur))
+		break;
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	pending[i] = toOccur;
+
+	setNextDue(pending[0].time);
+    }
+
+    /**
+     * Set the time the earliest pending interrupt is due, and the time from
+     * which <tt>tick()</tt> must check for it. Every tick is checked while
+     * tracing, since each one is printed.
+     */
+    private void setNextDue(long time) {
+	nextDue = time;
+	tickDue = tracing ? Long.MIN_VALUE : time;
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt, which must exist.
+     */
+    private PendingInterrupt removeFirstPending() {
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0) {
+	    // sift down
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numPending)
+		    break;
+		if (child+1 < numPending &&
+		    pending[child].after(pending[child+1]))
+		    child++;
+		if (!last.after(pending[child]))
+		    break;
+		pending[i] = pending[child];
+		i = child;
+	    }
+	    pending[i] = last;
+	}
+
+	setNextDue((numPending > 0) ? pending[0].time : Long.MAX_VALUE);
+	
+	return first;
+    }
+
     private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+	/**
+	 * Test whether this interrupt is due after <i>toOccur</i>. Interrupts
+	 * due at the same time occur in the order they were scheduled.
+	 */
+	boolean after(PendingInterrupt toOccur) {
+	    return time > toOccur.time ||
+		(time == toOccur.time && id > toOccur.id);
 	}
 
 	public int compareTo(Object o) {
@@ -230,6 +448,8 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	/** The next interrupt on the free list. */
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +457,21 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /**
+     * Pending interrupts, as a binary heap ordered by time and then by the
+     * order they were scheduled in.
+     */
+    private PendingInterrupt[] pending;
+    private int numPending;
+    /** The time the earliest pending interrupt is due, if any. */
+    private long nextDue;
+    /** <tt>nextDue</tt>, or the earliest time possible while tracing. */
+    private long tickDue;
+    /** <tt>true</tt> if the <tt>i</tt> debug flag was set at startup. */
+    private boolean tracing;
+    private boolean ticklessIdle;
+    /** Pending interrupts that have occurred and can be reused. */
+    private PendingInterrupt freeList = null;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +483,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long userTicksUntilDue() {
+	    return Interrupt.this.userTicksUntilDue();
+	}
+
+	public void tickUser(long numTicks) {
+	    Interrupt.this.tickUser(numTicks);
+	}
     }
 }
@@ -32,7 +32,48 @@ public final class Lib {
     private Lib() {
     }
 
-    private static Random random = null;
+    private static CheckpointRandom random = null;
+
+    /**
+     * A random number generator that produces the same numbers as
+     * <tt>java.util.Random</tt>, but whose state can be saved and restored by
+     * <tt>Checkpoint</tt>.
+     */
+    private static class CheckpointRandom extends Random {
+	CheckpointRandom(long seed) {
+	    super(seed);
+	}
+
+	public synchronized void setSeed(long seed) {
+	    state = (seed ^ multiplier) & mask;
+	}
+
+	protected synchronized int next(int bits) {
+	    state = (state * multiplier + addend) & mask;
+	    return (int) (state >>> (48 - bits));
+	}
+
+	long state;
+
+	private static final long serialVersionUID = 1L;
+	private static final long multiplier = 0x5DEECE66DL;
+	private static final long addend = 0xBL;
+	private static final long mask = (1L << 48) - 1;
+    }
+
+    /**
+     * Return the state of the random number generator.
+     */
+    static long getRandomState() {
+	return random.state;
+    }
+
+    /**
+     * Restore the state of the random number generator.
+     */
+    static void setRandomState(long state) {
+	random.state = state;
+    }
 
     /**
      * Seed the random number generater. May only be called once.
@@ -41,7 +82,7 @@ public final class Lib {
      */
     public static void seedRandom(long randomSeed) {
 	assertTrue(random == null);
-	random = new Random(randomSeed);
+	random = new CheckpointRandom(randomSeed);
     }
     
     /**
@@ -57,6 +98,31 @@ public final class Lib {
 	return random.nextInt(range);
     }
 
+    /**
+     * Return a random long between 0 and <i>range - 1</i>. Ranges that fit
+     * in an <tt>int</tt> use the same random numbers as
+     * <tt>random(int)</tt>.
+     *
+     * @param	range	a positive value specifying the number of possible
+     *			return values.
+     * @return	a random long in the specified range.
+     */
+    public static long random(long range) {
+	assertTrue(range > 0);
+
+	if (range <= Integer.MAX_VALUE)
+	    return random.nextInt((int) range);
+
+	// reject the top values that would make some results more likely
+	long bits, value;
+	do {
+	    bits = random.nextLong() >>> 1;
+	    value = bits % range;
+	} while (bits - value + (range-1) < 0);
+
+	return value;
+    }
+
     /**
      * Return a random double between 0.0 (inclusive) and 1.0 (exclusive).
      *
@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * A file that supports reading, writing, and seeking.
@@ -86,6 +87,16 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Get the time this file was last modified, as a stamp that changes
+     * whenever its contents do.
+     *
+     * @return	the modification time of this file, or 0 if it is not known.
+     */
+    public long lastModified() {
+	return 0;
+    }
+
     /**
      * Close this file and release any associated system resources.
      */
@@ -136,6 +147,121 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Read this file starting at the specified position into <i>bufs</i>,
+     * filling the remaining bytes of each buffer before the next, and
+     * advancing their positions past the bytes stored. Does not change the
+     * file pointer. Returns the number of bytes successfully read, or -1 on
+     * failure.
+     *
+     * <p>
+     * This implementation reads into an array and copies it into the
+     * buffers. A file that can read straight into the buffers, such as a
+     * file in the host file system, overrides it.
+     *
+     * @param	pos	the offset in the file at which to start reading.
+     * @param	bufs	the buffers to store the bytes in.
+     * @return	the actual number of bytes successfully read, or -1 on failure.
+     */
+    public int read(int pos, ByteBuffer[] bufs) {
+	byte[] data = new byte[remaining(bufs)];
+
+	int amount = read(pos, data, 0, data.length);
+	scatter(data, amount, bufs);
+	return amount;
+    }
+
+    /**
+     * Write the remaining bytes of <i>bufs</i>, in order, to this file
+     * starting at the specified position, advancing the buffers' positions
+     * past the bytes written. Does not change the file pointer. Returns the
+     * number of bytes successfully written, or -1 on failure.
+     *
+     * <p>
+     * This implementation copies the buffers into an array and writes it.
+     *
+     * @param	pos	the offset in the file at which to start writing.
+     * @param	bufs	the buffers to get the bytes from.
+     * @return	the actual number of bytes successfully written, or -1 on
+     *		failure.
+     */
+    public int write(int pos, ByteBuffer[] bufs) {
+	byte[] data = gather(bufs);
+
+	int amount = write(pos, data, 0, data.length);
+	skip(amount, bufs);
+	return amount;
+    }
+
+    /**
+     * Read this file starting at the current file pointer into <i>bufs</i>,
+     * like <tt>read(int, ByteBuffer[])</tt>. Advances the file pointer by the
+     * number of bytes read.
+     *
+     * @param	bufs	the buffers to store the bytes in.
+     * @return	the actual number of bytes successfully read, or -1 on failure.
+     */
+    public int read(ByteBuffer[] bufs) {
+	byte[] data = new byte[remaining(bufs)];
+
+	int amount = read(data, 0, data.length);
+	scatter(data, amount, bufs);
+	return amount;
+    }
+
+    /**
+     * Write <i>bufs</i> to this file starting at the current file pointer,
+     * like <tt>write(int, ByteBuffer[])</tt>. Advances the file pointer by
+     * the number of bytes written.
+     *
+     * @param	bufs	the buffers to get the bytes from.
+     * @return	the actual number of bytes successfully written, or -1 on
+     *		failure.
+     */
+    public int write(ByteBuffer[] bufs) {
+	byte[] data = gather(bufs);
+
+	int amount = write(data, 0, data.length);
+	skip(amount, bufs);
+	return amount;
+    }
+
+    private static int remaining(ByteBuffer[] bufs) {
+	int total = 0;
+	for (int i=0; i<bufs.length; i++)
+	    total += bufs[i].remaining();
+	return total;
+    }
+
+    private static void scatter(byte[] data, int amount, ByteBuffer[] bufs) {
+	int offset = 0;
+	for (int i=0; i<bufs.length && offset<amount; i++) {
+	    int length = Math.min(bufs[i].remaining(), amount-offset);
+	    bufs[i].put(data, offset, length);
+	    offset += length;
+	}
+    }
+
+    private static byte[] gather(ByteBuffer[] bufs) {
+	byte[] data = new byte[remaining(bufs)];
+
+	int offset = 0;
+	for (int i=0; i<bufs.length; i++) {
+	    int length = bufs[i].remaining();
+	    bufs[i].duplicate().get(data, offset, length);
+	    offset += length;
+	}
+	return data;
+    }
+
+    private static void skip(int amount, ByteBuffer[] bufs) {
+	for (int i=0; i<bufs.length && amount>0; i++) {
+	    int length = Math.min(bufs[i].remaining(), amount);
+	    bufs[i].position(bufs[i].position() + length);
+	    amount -= length;
+	}
+    }
+
     private FileSystem fileSystem;
     private String name;
 }
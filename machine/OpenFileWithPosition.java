@@ -2,6 +2,8 @@
 
 package nachos.machine;
 
+import java.nio.ByteBuffer;
+
 /**
  * An <tt>OpenFile</tt> that maintains a current file position.
  */
@@ -51,6 +53,24 @@ public abstract class OpenFileWithPosition extends OpenFile {
 	return amount;
     }
 
+    public int read(ByteBuffer[] bufs) {
+	int amount = read(position, bufs);
+	if (amount == -1)
+	    return -1;
+	
+	position += amount;
+	return amount;
+    }
+
+    public int write(ByteBuffer[] bufs) {
+	int amount = write(position, bufs);
+	if (amount == -1)
+	    return -1;
+	
+	position += amount;
+	return amount;
+    }
+
     /**
      * The current value of the file pointer.
      */
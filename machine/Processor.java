@@ -4,6 +4,15 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,7 +54,15 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	allocateMemory();
+	decodedPages = new DecodedInstruction[numPhysPages][];
+
+	blockTranslation = Config.getBoolean("Processor.blockTranslation",
+					     false);
+	if (blockTranslation)
+	    blockPages = new BasicBlock[numPhysPages][];
+
+	batchTicks = Config.getBoolean("Processor.batchTicks", false);
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -55,6 +72,8 @@ public final class Processor {
 	else {
 	    translations = null;
 	}
+
+	flushMicroTLB();
     }
 
     /**
@@ -89,11 +108,41 @@ public final class Processor {
 
 	registers[regNextPC] = registers[regPC] + 4;
 
+	Checkpoint.processorStarting(privilege);
+
+	flushMicroTLB();
+	checkTracing = true;
+	numBatchedTicks = maxBatchedTicks = 0;
+
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+	Instruction tracedInst = new TracedInstruction();
 	
 	while (true) {
+	    if (checkTracing) {
+		checkTracing = false;
+		tracing = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+		    Lib.test(dbgFullDisassemble);
+	    }
+	    
+	    if (tracing) {
+		try {
+		    tracedInst.run();
+		}
+		catch (MipsException e) {
+		    e.handle();
+		}
+
+		tick();
+		continue;
+	    }
+	    
+	    if (blockTranslation) {
+		runBlock(inst);
+		continue;
+	    }
+	    
 	    try {
 		inst.run();
 	    }
@@ -101,10 +150,125 @@ public final class Processor {
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
 	}
     }
 
+    /**
+     * Charge one user tick for the instruction just executed. If batching
+     * ticks, the tick is only counted here until the next interrupt is about
+     * to become due; then the whole batch is charged at once and the tick
+     * that makes the interrupt due goes through <tt>Interrupt.tick()</tt> as
+     * usual, so interrupts occur at exactly the same times.
+     */
+    private void tick() {
+	if (numBatchedTicks < maxBatchedTicks) {
+	    numBatchedTicks++;
+	    return;
+	}
+
+	endBatch();
+	privilege.interrupt.tick(false);
+
+	if (batchTicks)
+	    maxBatchedTicks = privilege.interrupt.userTicksUntilDue();
+    }
+
+    /**
+     * Charge any ticks that have been batched, and stop batching until the
+     * next call to <tt>Interrupt.tick()</tt>. Must be called before any
+     * kernel code runs, since the kernel can read the time and schedule
+     * interrupts.
+     */
+    private void endBatch() {
+	if (numBatchedTicks > 0)
+	    privilege.interrupt.tickUser(numBatchedTicks);
+
+	numBatchedTicks = maxBatchedTicks = 0;
+    }
+
+    /**
+     * Execute the basic block starting at the current PC, one instruction
+     * per tick, exactly as <tt>Instruction.run()</tt> would have. Returns
+     * after the last instruction of the block, or as soon as anything other
+     * than the block itself may have changed the state the block was
+     * translated against: an exception, an interrupt handler, a jump out of
+     * the block, or a store into the block's own instructions.
+     *
+     * @param	inst	the instruction used to execute untranslated
+     *			instructions.
+     */
+    private void runBlock(Instruction inst) {
+	BasicBlock block;
+
+	try {
+	    block = fetchBlock(inst);
+	}
+	catch (MipsException e) {
+	    e.handle();
+	    tick();
+	    return;
+	}
+
+	blockStart = block.paddr;
+	blockEnd = block.paddr + block.ops.length*4;
+	blockModified = false;
+
+	int pc = block.vaddr;
+	
+	for (int i=0; i<block.ops.length; i++) {
+	    long flushes = numPipeFlushes;
+	    
+	    try {
+		block.ops[i].run();
+	    }
+	    catch (MipsException e) {
+		e.handle();
+		tick();
+		return;
+	    }
+
+	    tick();
+
+	    pc += 4;
+	    if (registers[regPC] != pc || numPipeFlushes != flushes ||
+		blockModified)
+		return;
+	}
+    }
+
+    /**
+     * Return the translated basic block starting at the current PC. The PC is
+     * translated just as it is for an ordinary instruction fetch, so the same
+     * exceptions occur. A cached block is only reused if every instruction
+     * word it was built from is still in memory.
+     *
+     * @param	inst	the instruction used to execute untranslated
+     *			instructions.
+     * @return	the basic block starting at the current PC.
+     * @exception	MipsException	if the fetch caused an exception.
+     */
+    private BasicBlock fetchBlock(Instruction inst) throws MipsException {
+	int vaddr = registers[regPC];
+	int paddr = translate(vaddr, 4, false);
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	BasicBlock[] page = blockPages[ppn];
+	if (page == null) {
+	    page = new BasicBlock[pageSize/4];
+	    blockPages[ppn] = page;
+	}
+
+	BasicBlock block = page[index];
+	if (block == null || block.vaddr != vaddr || !block.matchesMemory()) {
+	    block = new BasicBlock(vaddr, paddr, inst);
+	    page[index] = block;
+	}
+
+	return block;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +339,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushMicroTLB();
     }
 
     /**
@@ -216,6 +381,18 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	flushMicroTLB();
+    }
+
+    /**
+     * Count a page fault that the kernel found while handling a TLB miss.
+     * In page table mode the processor counts page faults itself, but with
+     * a TLB it cannot tell which misses are also page faults.
+     */
+    public void countPageFault() {
+	Lib.assertTrue(usingTLB);
+
+	privilege.stats.numPageFaults++;
     }
 
     /**
@@ -232,12 +409,128 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Only available if physical memory is on the Java heap; see
+     * <tt>hasMemoryArray()</tt>. <tt>readPhysicalMemory()</tt> and
+     * <tt>writePhysicalMemory()</tt> work with any kind of memory.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null);
+
 	return mainMemory;
     }
 
+    /**
+     * Return a buffer over <i>length</i> bytes of physical memory, starting
+     * at <i>paddr</i>. The buffer's position is <i>paddr</i> and its limit
+     * is <i>paddr+length</i>; reading or writing it reads or writes physical
+     * memory directly, whatever kind of memory it is.
+     *
+     * @param	paddr	the first byte of physical memory.
+     * @param	length	the number of bytes.
+     * @return	a buffer over the physical memory.
+     */
+    public ByteBuffer getMemoryBuffer(int paddr, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= memory.capacity());
+
+	ByteBuffer buf = memory.duplicate();
+	buf.limit(paddr+length);
+	buf.position(paddr);
+	return buf;
+    }
+
+    /**
+     * Test whether physical memory is a Java array, available from
+     * <tt>getMemory()</tt>.
+     *
+     * @return	<tt>true</tt> if physical memory is on the Java heap.
+     */
+    public boolean hasMemoryArray() {
+	return mainMemory != null;
+    }
+
+    /**
+     * Copy <i>length</i> bytes of physical memory, starting at
+     * <i>paddr</i>, into <i>data</i>.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readPhysicalMemory(int paddr, byte[] data, int offset,
+				   int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= memory.capacity());
+
+	if (mainMemory != null)
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	else
+	    memory.duplicate().position(paddr).get(data, offset, length);
+    }
+
+    /**
+     * Copy <i>length</i> bytes from <i>data</i> into physical memory,
+     * starting at <i>paddr</i>.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array containing the data to copy.
+     * @param	offset	the first byte to copy from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writePhysicalMemory(int paddr, byte[] data, int offset,
+				    int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= memory.capacity());
+
+	if (mainMemory != null)
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	else
+	    memory.duplicate().position(paddr).put(data, offset, length);
+    }
+
+    /**
+     * Allocate physical memory. By default memory is a Java array. If
+     * <tt>Processor.offHeapMemory</tt> is set it is a direct buffer instead,
+     * and if <tt>Processor.memoryFile</tt> is set it is that file, mapped
+     * into memory; either way large memories don't have to fit in the Java
+     * heap.
+     */
+    private void allocateMemory() {
+	int size = pageSize * numPhysPages;
+	Lib.assertTrue(size / pageSize == numPhysPages);
+
+	String fileName = Config.getString("Processor.memoryFile", null);
+
+	if (fileName != null) {
+	    try {
+		FileChannel channel =
+		    FileChannel.open(Paths.get(fileName),
+				     StandardOpenOption.CREATE,
+				     StandardOpenOption.TRUNCATE_EXISTING,
+				     StandardOpenOption.READ,
+				     StandardOpenOption.WRITE);
+		memory = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		channel.close();
+	    }
+	    catch (IOException e) {
+		Lib.assertNotReached("could not map " + fileName + ": " + e);
+	    }
+	    mainMemory = null;
+	}
+	else if (Config.getBoolean("Processor.offHeapMemory", false)) {
+	    memory = ByteBuffer.allocateDirect(size);
+	    mainMemory = null;
+	}
+	else {
+	    mainMemory = new byte[size];
+	    memory = ByteBuffer.wrap(mainMemory);
+	}
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -294,13 +587,17 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
-
+	// a micro-TLB hit means the checks below are already known to pass
+	if ((vaddr & (size-1)) == 0) {
+	    int vpn = pageFromAddress(vaddr);
+	    int index = vpn & (microTLBSize-1);
+	    int tag = writing ? microTLBWritable[index] : microTLBReadable[index];
+	    if (tag == vpn)
+		return microTLBBase[index] + offsetFromAddress(vaddr);
+	}
+	
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
-	    Lib.debug(dbgProcessor, "\t\talignment error");
 	    throw new MipsException(exceptionAddressError, vaddr);
 	}
 
@@ -316,7 +613,6 @@ public final class Processor {
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
 		throw new MipsException(exceptionPageFault, vaddr);
 	    }
 
@@ -332,21 +628,18 @@ public final class Processor {
 	    }
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
 	    throw new MipsException(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
 	    throw new MipsException(exceptionBusError, vaddr);
 	}
 
@@ -355,13 +648,80 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	// while tracing, every access goes through the full translation
+	if (!tracing)
+	    fillMicroTLB(vpn, ppn, !entry.readOnly && entry.dirty);
+	
+	return (ppn*pageSize) + offset;
+    }
 
+    /**
+     * Translate a virtual address as <tt>translate()</tt> does, printing each
+     * step for the <tt>p</tt> debug flag.
+     */
+    private int translateTraced(int vaddr, int size, boolean writing)
+	throws MipsException {
 	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+			       + (writing ? ", write" : ", read..."));
+
+	int paddr;
+	try {
+	    paddr = translate(vaddr, size, writing);
+	}
+	catch (MipsException e) {
+	    Lib.debug(dbgProcessor, "\t\t" + translateErrors[e.cause]);
+	    throw e;
+	}
+
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 	return paddr;
     }
 
+    /** Trace messages for the exceptions <tt>translate()</tt> can cause. */
+    private static final String[] translateErrors = {
+	null,
+	"page fault",
+	"TLB miss",
+	"read-only exception",
+	"bad ppn",
+	"alignment error"
+    };
+
+    /**
+     * Remember a successful translation in the micro-TLB. Until the next
+     * flush, the only thing that can touch <i>entry</i> is
+     * <tt>translate()</tt> itself, which would only set the used bit and,
+     * for writes, the dirty bit again. So a later access to the same page can
+     * skip the full translation, as long as writes are only allowed through
+     * once the dirty bit is set.
+     *
+     * @param	vpn	the virtual page number that was translated.
+     * @param	ppn	the physical page number it translated to.
+     * @param	writable	<tt>true</tt> if writes to the page can also
+     *				skip the full translation.
+     */
+    private void fillMicroTLB(int vpn, int ppn, boolean writable) {
+	int index = vpn & (microTLBSize-1);
+
+	microTLBReadable[index] = vpn;
+	microTLBWritable[index] = writable ? vpn : -1;
+	microTLBBase[index] = ppn*pageSize;
+    }
+
+    /**
+     * Empty the micro-TLB. Called whenever the kernel could have changed a
+     * translation: when the page table or TLB is set, and before any kernel
+     * code runs in an exception or interrupt handler.
+     */
+    private void flushMicroTLB() {
+	for (int i=0; i<microTLBSize; i++) {
+	    microTLBReadable[i] = -1;
+	    microTLBWritable[i] = -1;
+	}
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -372,14 +732,21 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
+	return load(translate(vaddr, size, false), size);
+    }
+
+    /**
+     * Read virtual memory as <tt>readMem()</tt> does, printing each step for
+     * the <tt>p</tt> debug flag.
+     */
+    private int readMemTraced(int vaddr, int size) throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = load(translateTraced(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -398,6 +765,18 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private void writeMem(int vaddr, int size, int value)
+	throws MipsException {
+	int paddr = translate(vaddr, size, true);
+	invalidateDecoded(paddr);
+
+	store(paddr, size, value);
+    }
+
+    /**
+     * Write virtual memory as <tt>writeMem()</tt> does, printing each step
+     * for the <tt>p</tt> debug flag.
+     */
+    private void writeMemTraced(int vaddr, int size, int value)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
@@ -405,9 +784,113 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translateTraced(vaddr, size, true);
+	invalidateDecoded(paddr);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	store(paddr, size, value);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory at
+     * <i>paddr</i>, which must be aligned. Halfwords and bytes are
+     * sign-extended.
+     */
+    private int load(int paddr, int size) {
+	switch (size) {
+	case 4:
+	    return readWord(paddr);
+	case 2:
+	    return (short) halfwordView.get(memory, paddr);
+	default:
+	    Lib.assertTrue(size==1);
+	    return memory.get(paddr);
+	}
+    }
+
+    /**
+     * Write <i>value</i> to <i>size</i> (1, 2, or 4) bytes of physical
+     * memory at <i>paddr</i>, which must be aligned.
+     */
+    private void store(int paddr, int size, int value) {
+	switch (size) {
+	case 4:
+	    wordView.set(memory, paddr, value);
+	    break;
+	case 2:
+	    halfwordView.set(memory, paddr, (short) value);
+	    break;
+	default:
+	    Lib.assertTrue(size==1);
+	    memory.put(paddr, (byte) value);
+	    break;
+	}
+    }
+
+    /**
+     * Read the little-endian word at physical address <i>paddr</i>, which
+     * must be word-aligned.
+     */
+    private int readWord(int paddr) {
+	return (int) wordView.get(memory, paddr);
+    }
+
+    /**
+     * Little-endian views of main memory as words and halfwords. These work
+     * whether or not memory is on the Java heap. Addresses passed to them
+     * have already been checked for alignment by <tt>translate()</tt>.
+     */
+    private static final VarHandle wordView =
+	MethodHandles.byteBufferViewVarHandle(int[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle halfwordView =
+	MethodHandles.byteBufferViewVarHandle(short[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Return the decoded form of the instruction word <i>value</i>, which was
+     * fetched from physical address <i>paddr</i>. Decoded instructions are
+     * cached per physical page, and a cached entry is only used if the word
+     * it was decoded from is still the word in memory, so pages rewritten by
+     * the kernel (e.g. when loading a new program) are never stale.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction decodeInstruction(int paddr, int value) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodedPages[ppn] = page;
+	}
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard the decoded instruction cached for the word containing
+     * <i>paddr</i>, and note if the basic block currently executing was just
+     * modified. Called whenever a user program writes to memory.
+     *
+     * @param	paddr	the physical address that was written.
+     */
+    private void invalidateDecoded(int paddr) {
+	DecodedInstruction[] page = decodedPages[paddr / pageSize];
+	if (page != null)
+	    page[(paddr % pageSize) / 4] = null;
+
+	if (paddr >= blockStart && paddr < blockEnd)
+	    blockModified = true;
     }
 
     /**
@@ -547,14 +1030,72 @@ public final class Processor {
      */
     private TranslationEntry[] translations;
 
+    /** Number of entries in the micro-TLB. Must be a power of two. */
+    private static final int microTLBSize = 64;
+    /**
+     * A direct-mapped cache of recent translations, indexed by the low bits of
+     * the virtual page number. The tag arrays hold the virtual page number
+     * that may be read or written through each entry, or -1 if none, and
+     * <tt>microTLBBase</tt> holds the physical address of that page.
+     */
+    private int[] microTLBReadable = new int[microTLBSize];
+    private int[] microTLBWritable = new int[microTLBSize];
+    private int[] microTLBBase = new int[microTLBSize];
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /**
+     * Main memory for user programs, or <tt>null</tt> if memory is not on the
+     * Java heap.
+     */
     private byte[] mainMemory;
+    /** Main memory for user programs, wherever it is. */
+    private ByteBuffer memory;
+    /**
+     * Decoded instructions, cached per physical page and indexed by the word
+     * offset within the page. A page's array is allocated the first time an
+     * instruction is fetched from it.
+     */
+    private DecodedInstruction[][] decodedPages;
+
+    /** <tt>true</tt> if executing translated basic blocks. */
+    private boolean blockTranslation;
+    /** Translated basic blocks, cached like <tt>decodedPages</tt>. */
+    private BasicBlock[][] blockPages;
+    /**
+     * The physical addresses covered by the basic block currently executing,
+     * and whether a store has written to them.
+     */
+    private int blockStart = 0, blockEnd = 0;
+    private boolean blockModified;
+    /**
+     * The number of times the pipe has been flushed. The pipe is flushed
+     * before every interrupt handler runs, so a change in this count tells a
+     * basic block that kernel code may have run, even if the handler
+     * switched to another thread that executed blocks of its own.
+     */
+    private long numPipeFlushes = 0;
+
+    /**
+     * <tt>true</tt> if any of the processor's debug flags are enabled, in
+     * which case instructions are executed by a
+     * <tt>TracedInstruction</tt>. Debug flags can only change while kernel
+     * code runs, so this is only recomputed, when <tt>checkTracing</tt> is
+     * set, after an exception or interrupt handler.
+     */
+    private boolean tracing, checkTracing;
+
+    /** <tt>true</tt> if user ticks are charged in batches. */
+    private boolean batchTicks;
+    /**
+     * The number of user ticks executed but not yet charged, and the number
+     * that can be charged before the next interrupt becomes due.
+     */
+    private long numBatchedTicks = 0, maxBatchedTicks = 0;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -565,6 +1106,9 @@ public final class Processor {
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
+	    numPipeFlushes++;
+	    flushMicroTLB();
+	    checkTracing = true;
 	    finishLoad();
 	}
     }
@@ -584,6 +1128,10 @@ public final class Processor {
 	}
 
 	public void handle() {
+	    endBatch();
+	    flushMicroTLB();
+	    checkTracing = true;
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -616,88 +1164,72 @@ public final class Processor {
 	    writeBack();
 	}	
 
-	private boolean test(int flag) {
+	/**
+	 * Execute an instruction that has already been fetched and decoded.
+	 *
+	 * @param	decoded	the decoded instruction to execute.
+	 */
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    this.decoded = decoded;
+	    
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
+	boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
+	int readMem(int vaddr, int size) throws MipsException {
+	    return Processor.this.readMem(vaddr, size);
+	}
 
-	    value = readMem(registers[regPC], 4);
+	void writeMem(int vaddr, int size, int value) throws MipsException {
+	    Processor.this.writeMem(vaddr, size, value);
 	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	void fetch() throws MipsException {
+	    int paddr = translate(registers[regPC], 4, false);
+	    value = readWord(paddr);
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    decoded = decodeInstruction(paddr, value);
+	}
+	
+	void decode() {
+	    // the parts that depend only on the instruction word are cached
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -717,12 +1249,9 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
-	private void print() {
+	void print() {
 	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
 		!Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
@@ -845,7 +1374,7 @@ public final class Processor {
 		System.out.print("\n");
 	}
 
-	private void execute() throws MipsException {
+	void execute() throws MipsException {
 	    int value;
 	    int preserved;
 	    
@@ -1016,7 +1545,7 @@ public final class Processor {
 	    }
 	}
 
-	private void writeBack() throws MipsException {
+	void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
 		throw new MipsException(exceptionOverflow);
@@ -1032,26 +1561,15 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
-
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1581,523 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * An instruction that prints its execution for the <tt>p</tt>,
+     * <tt>m</tt>, and <tt>M</tt> debug flags. Used instead of
+     * <tt>Instruction</tt> whenever any of these flags are enabled, so that
+     * the usual path never tests them.
+     */
+    private class TracedInstruction extends Instruction {
+	public void run() throws MipsException {
+	    fetch();
+	    decode();
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();
+	    
+	    execute();
+	    writeBack();
+
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+		if (Lib.test(dbgFullDisassemble)) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (test(Mips.DELAYEDLOAD))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+
+	int readMem(int vaddr, int size) throws MipsException {
+	    return readMemTraced(vaddr, size);
+	}
+
+	void writeMem(int vaddr, int size, int value) throws MipsException {
+	    writeMemTraced(vaddr, size, value);
+	}
+
+	void fetch() throws MipsException {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    int paddr = translateTraced(registers[regPC], 4, false);
+	    value = readWord(paddr);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    decoded = decodeInstruction(paddr, value);
+	}
+    }
+
+    /**
+     * A straight-line run of instructions within one physical page, ending
+     * with the delay slot of the first branch or jump, or with a syscall or
+     * an invalid instruction. Each instruction is translated once into an
+     * operation that has the same effect as <tt>Instruction.run()</tt>
+     * without fetching or decoding it again.
+     */
+    private class BasicBlock {
+	BasicBlock(int vaddr, int paddr, Instruction inst) {
+	    this.vaddr = vaddr;
+	    this.paddr = paddr;
+
+	    int pageEnd = (paddr / pageSize + 1) * pageSize;
+	    int length = 0;
+	    boolean delaySlot = false;
+	    
+	    DecodedInstruction[] decoded = new DecodedInstruction[pageSize/4];
+
+	    for (int addr=paddr; addr<pageEnd; addr+=4) {
+		DecodedInstruction d =
+		    decodeInstruction(addr, readWord(addr));
+		decoded[length++] = d;
+
+		if (delaySlot)
+		    break;
+
+		if (Lib.test(Mips.BRANCH, d.flags))
+		    delaySlot = true;
+		else if (d.operation == Mips.SYSCALL ||
+			 d.operation == Mips.UNIMPL ||
+			 d.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    words = new int[length];
+	    ops = new BlockOp[length];
+	    for (int i=0; i<length; i++) {
+		words[i] = decoded[i].value;
+		ops[i] = translateInstruction(decoded[i], inst);
+	    }
+	}
+
+	/**
+	 * Test whether the instructions this block was built from are still in
+	 * memory.
+	 *
+	 * @return	<tt>true</tt> if the block can be executed.
+	 */
+	boolean matchesMemory() {
+	    for (int i=0; i<words.length; i++) {
+		if (readWord(paddr + i*4) != words[i])
+		    return false;
+	    }
+	    return true;
+	}
+
+	/** The virtual and physical addresses of the first instruction. */
+	final int vaddr, paddr;
+	final int[] words;
+	final BlockOp[] ops;
+    }
+
+    /**
+     * Translate a decoded instruction into an operation for a basic block.
+     * The common instructions get operations of their own; the rest are
+     * executed by <tt>Instruction.run(DecodedInstruction)</tt>.
+     *
+     * @param	d	the decoded instruction.
+     * @param	inst	the instruction used to execute untranslated
+     *			instructions.
+     * @return	an operation with the same effect as the instruction.
+     */
+    private BlockOp translateInstruction(DecodedInstruction d,
+					 Instruction inst) {
+	switch (d.op) {
+	case 0x00:
+	    switch (d.func) {
+	    case 0x00: return new ShiftOp(d, Mips.SLL, false);
+	    case 0x02: return new ShiftOp(d, Mips.SRL, false);
+	    case 0x03: return new ShiftOp(d, Mips.SRA, false);
+	    case 0x04: return new ShiftOp(d, Mips.SLL, true);
+	    case 0x06: return new ShiftOp(d, Mips.SRL, true);
+	    case 0x07: return new ShiftOp(d, Mips.SRA, true);
+	    case 0x08: return new JumpRegisterOp(d);
+	    case 0x21: return new AluOp(d, Mips.ADD);
+	    case 0x23: return new AluOp(d, Mips.SUB);
+	    case 0x24: return new AluOp(d, Mips.AND);
+	    case 0x25: return new AluOp(d, Mips.OR);
+	    case 0x26: return new AluOp(d, Mips.XOR);
+	    case 0x27: return new AluOp(d, Mips.NOR);
+	    case 0x2A:
+	    case 0x2B: return new AluOp(d, Mips.SLT);
+	    }
+	    break;
+	case 0x02:
+	case 0x03: return new JumpOp(d);
+	case 0x04:
+	case 0x05:
+	case 0x06:
+	case 0x07: return new BranchOp(d);
+	case 0x09: return new AluImmOp(d, Mips.ADD);
+	case 0x0A:
+	case 0x0B: return new AluImmOp(d, Mips.SLT);
+	case 0x0C: return new AluImmOp(d, Mips.AND);
+	case 0x0D: return new AluImmOp(d, Mips.OR);
+	case 0x0E: return new AluImmOp(d, Mips.XOR);
+	case 0x0F: return new AluImmOp(d, Mips.LUI);
+	case 0x20:
+	case 0x21:
+	case 0x23:
+	case 0x24:
+	case 0x25: return new LoadOp(d);
+	case 0x28:
+	case 0x29:
+	case 0x2B: return new StoreOp(d);
+	}
+
+	return new InterpretedOp(d, inst);
+    }
+
+    /**
+     * Complete an instruction that does not branch and is not a load: finish
+     * the delayed load in progress, write the result, and advance the PC.
+     *
+     * @param	dstReg	the destination register.
+     * @param	result	the value to write to <i>dstReg</i>.
+     */
+    private void retire(int dstReg, int result) {
+	finishLoad();
+
+	if (dstReg != 0)
+	    registers[dstReg] = result;
+
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * A single instruction in a basic block. Operands are always read from
+     * the registers before the delayed load in progress is completed, just
+     * as <tt>Instruction.decode()</tt> reads them before
+     * <tt>Instruction.writeBack()</tt> completes it.
+     */
+    private abstract class BlockOp {
+	BlockOp(DecodedInstruction d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    dstReg = d.dstReg;
+	    imm = d.imm;
+	}
+
+	abstract void run() throws MipsException;
+
+	final int rs, rt, dstReg, imm;
+    }
+
+    /** An instruction with no operation of its own. */
+    private class InterpretedOp extends BlockOp {
+	InterpretedOp(DecodedInstruction d, Instruction inst) {
+	    super(d);
+	    this.d = d;
+	    this.inst = inst;
+	}
+
+	void run() throws MipsException {
+	    inst.run(d);
+	}
+
+	private final DecodedInstruction d;
+	private final Instruction inst;
+    }
+
+    /** <tt>addu</tt>, <tt>subu</tt>, and the other register ALU operations. */
+    private class AluOp extends BlockOp {
+	AluOp(DecodedInstruction d, int operation) {
+	    super(d);
+	    this.operation = operation;
+	    unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+	}
+
+	void run() {
+	    int a = registers[rs], b = registers[rt];
+	    int result;
+
+	    switch (operation) {
+	    case Mips.ADD: result = a + b; break;
+	    case Mips.SUB: result = a - b; break;
+	    case Mips.AND: result = a & b; break;
+	    case Mips.OR:  result = a | b; break;
+	    case Mips.XOR: result = a ^ b; break;
+	    case Mips.NOR: result = ~(a | b); break;
+	    default:
+		if (unsigned)
+		    result = ((a&0xFFFFFFFFL) < (b&0xFFFFFFFFL)) ? 1 : 0;
+		else
+		    result = (a < b) ? 1 : 0;
+		break;
+	    }
+
+	    retire(dstReg, result);
+	}
+
+	private final int operation;
+	private final boolean unsigned;
+    }
+
+    /**
+     * <tt>addiu</tt>, <tt>ori</tt>, <tt>lui</tt>, and the other immediate ALU
+     * operations. The immediate was already zero-extended by decoding if the
+     * operation is unsigned.
+     */
+    private class AluImmOp extends BlockOp {
+	AluImmOp(DecodedInstruction d, int operation) {
+	    super(d);
+	    this.operation = operation;
+	    unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+	}
+
+	void run() {
+	    int a = registers[rs];
+	    int result;
+
+	    switch (operation) {
+	    case Mips.ADD: result = a + imm; break;
+	    case Mips.AND: result = a & imm; break;
+	    case Mips.OR:  result = a | imm; break;
+	    case Mips.XOR: result = a ^ imm; break;
+	    case Mips.LUI: result = imm << 16; break;
+	    default:
+		if (unsigned)
+		    result = ((a&0xFFFFFFFFL) < imm) ? 1 : 0;
+		else
+		    result = (a < imm) ? 1 : 0;
+		break;
+	    }
+
+	    retire(dstReg, result);
+	}
+
+	private final int operation;
+	private final boolean unsigned;
+    }
+
+    /**
+     * Shifts by a constant or by a register. Like
+     * <tt>Instruction.execute()</tt>, the shifted value is sign-extended to
+     * 64 bits first, which affects the result of <tt>srl</tt>.
+     */
+    private class ShiftOp extends BlockOp {
+	ShiftOp(DecodedInstruction d, int operation, boolean variable) {
+	    super(d);
+	    this.operation = operation;
+	    this.variable = variable;
+	    sh = d.sh;
+	}
+
+	void run() {
+	    long value = registers[rt];
+	    int amount = (variable ? registers[rs] : sh) & 0x1F;
+	    int result;
+
+	    switch (operation) {
+	    case Mips.SLL: result = (int) (value << amount); break;
+	    case Mips.SRA: result = (int) (value >> amount); break;
+	    default:       result = (int) (value >>> amount); break;
+	    }
+
+	    retire(dstReg, result);
+	}
+
+	private final int operation;
+	private final boolean variable;
+	private final int sh;
+    }
+
+    /** <tt>lw</tt>, <tt>lh</tt>, <tt>lhu</tt>, <tt>lb</tt>, and <tt>lbu</tt>. */
+    private class LoadOp extends BlockOp {
+	LoadOp(DecodedInstruction d) {
+	    super(d);
+	    size = d.size;
+	    unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+	}
+
+	void run() throws MipsException {
+	    int value = readMem(registers[rs] + imm, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private final int size;
+	private final boolean unsigned;
+    }
+
+    /** <tt>sw</tt>, <tt>sh</tt>, and <tt>sb</tt>. */
+    private class StoreOp extends BlockOp {
+	StoreOp(DecodedInstruction d) {
+	    super(d);
+	    size = d.size;
+	}
+
+	void run() throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private final int size;
+    }
+
+    /** Conditional branches that do not link. */
+    private class BranchOp extends BlockOp {
+	BranchOp(DecodedInstruction d) {
+	    super(d);
+	    operation = d.operation;
+	    branchOffset = d.branchOffset;
+	}
+
+	void run() {
+	    int a = registers[rs];
+	    boolean branch;
+
+	    switch (operation) {
+	    case Mips.BEQ:  branch = (a == registers[rt]); break;
+	    case Mips.BNE:  branch = (a != registers[rt]); break;
+	    case Mips.BLEZ: branch = (a <= 0); break;
+	    default:        branch = (a > 0); break;
+	    }
+
+	    int nextPC = registers[regNextPC];
+	    int target = branch ? nextPC + branchOffset : nextPC + 4;
+
+	    finishLoad();
+	    advancePC(target);
+	}
+
+	private final int operation;
+	private final int branchOffset;
+    }
+
+    /** <tt>j</tt> and <tt>jal</tt>. */
+    private class JumpOp extends BlockOp {
+	JumpOp(DecodedInstruction d) {
+	    super(d);
+	    target = d.target << 2;
+	    link = Lib.test(Mips.LINK, d.flags);
+	}
+
+	void run() {
+	    int nextPC = registers[regNextPC];
+
+	    finishLoad();
+
+	    if (link)
+		registers[regRA] = nextPC + 4;
+
+	    advancePC((nextPC&0xF0000000) | target);
+	}
+
+	private final int target;
+	private final boolean link;
+    }
+
+    /** <tt>jr</tt>. */
+    private class JumpRegisterOp extends BlockOp {
+	JumpRegisterOp(DecodedInstruction d) {
+	    super(d);
+	}
+
+	void run() {
+	    int target = registers[rs];
+
+	    finishLoad();
+	    advancePC(target);
+	}
+    }
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the contents of any registers.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets use the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	/** The instruction word this was decoded from. */
+	final int value;
+	
+	final int op, rs, rt, rd, sh, func, target;
+	int imm;
+	final int branchOffset;
+
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -8,6 +8,9 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedAction;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -77,6 +80,7 @@ public class StubFileSystem implements FileSystem {
 	    super(StubFileSystem.this, name);
 
 	    final File f = new File(directory, name);
+	    hostFile = f;
 
 	    if (openCount == maxOpenFiles)
 		throw new IOException();
@@ -137,6 +141,59 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	/**
+	 * Read straight into the buffers with one scattering read of the
+	 * file's channel.
+	 */
+	public int read(int pos, ByteBuffer[] bufs) {
+	    if (!open)
+		return -1;
+	    
+	    try {
+		delay();
+
+		FileChannel channel = file.getChannel();
+		channel.position(pos);
+
+		long amount = 0, count = 1;
+		while (count > 0 && bufs.length > 0 &&
+		       bufs[bufs.length-1].hasRemaining()) {
+		    count = channel.read(bufs);
+		    amount += Math.max(0, count);
+		}
+
+		return (int) amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	/**
+	 * Write straight from the buffers with gathering writes to the file's
+	 * channel.
+	 */
+	public int write(int pos, ByteBuffer[] bufs) {
+	    if (!open)
+		return -1;
+	    
+	    try {
+		delay();
+
+		FileChannel channel = file.getChannel();
+		channel.position(pos);
+
+		long amount = 0;
+		while (bufs.length > 0 && bufs[bufs.length-1].hasRemaining())
+		    amount += channel.write(bufs);
+
+		return (int) amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
 	public int length() {
 	    try {
 		return (int) file.length();
@@ -146,6 +203,17 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	public long lastModified() {
+	    PrivilegedAction<Long> stat = new PrivilegedAction<Long>() {
+		public Long run() {
+		    return Long.valueOf(hostFile.lastModified());
+		}
+	    };
+	    Long time = (Long) privilege.doPrivileged(stat);
+
+	    return time.longValue();
+	}
+
 	public void close() {
 	    if (open) {
 		open = false;
@@ -160,6 +228,7 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	private RandomAccessFile file = null;
+	private File hostFile;
 	private boolean open = false;
     }
 
@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +17,14 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If <tt>nachos.conf</tt> sets <tt>TCB.virtualThreads</tt>, the JVM threads
+ * are virtual threads, which need Java 21 or later. Waiting virtual threads do
+ * not hold an operating system thread, so many more Nachos threads can exist,
+ * and context switches do not wait for the operating system to wake a thread.
+ * <tt>TCB.maxThreads</tt> sets the limit on the number of Nachos threads;
+ * <tt>getThreadLimit()</tt> returns it.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +51,43 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	boolean virtualThreads = Config.getBoolean("TCB.virtualThreads", false);
+	if (virtualThreads)
+	    threadFactory = virtualThreadFactory();
+
+	threadLimit = Config.getInteger("TCB.maxThreads",
+					virtualThreads ? maxVirtualThreads :
+					maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+    }
+
+    /**
+     * Return the maximum number of started, non-destroyed TCB's that can be
+     * in existence. This is <tt>maxThreads</tt> unless <tt>nachos.conf</tt>
+     * sets <tt>TCB.maxThreads</tt> or <tt>TCB.virtualThreads</tt>.
+     *
+     * @return	the limit on the number of TCB's.
+     */
+    public static int getThreadLimit() {
+	return threadLimit;
+    }
+
+    /**
+     * Get a factory for virtual threads. Virtual threads are only available
+     * in Java 21 and later, so the factory has to be found by reflection.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+	try {
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+	    return (ThreadFactory)
+		builderClass.getMethod("factory").invoke(builder);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("TCB.virtualThreads requires Java 21 or later");
+	    return null;
+	}
     }
     
     /**
@@ -66,7 +114,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +134,34 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, it needs a Java thread to run it.
+	     * The Java thread of a destroyed TCB waits in idleCarriers to be
+	     * reused; if there isn't one, we have to make a new Java thread.
+	     * Creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    if (!idleCarriers.isEmpty()) {
+		carrier = idleCarriers.remove(idleCarriers.size()-1);
+	    }
+	    else {
+		carrier = new Carrier();
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    carrier.thread = newJavaThread(carrier);
+			}
+		    });
+	    }
+
+	    javaThread = carrier.thread;
+
+	    /* The Java thread isn't running this TCB yet, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off
+	     * the current TCB, handing this TCB to the Java thread, and
+	     * waiting for it to wake us up from threadroot(). Once the new TCB
+	     * wakes us up, it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    carrier.run(this);
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -119,6 +175,13 @@ public final class TCB {
 	}
     }
 
+    private static Thread newJavaThread(Runnable target) {
+	if (threadFactory != null)
+	    return threadFactory.newThread(target);
+	else
+	    return new Thread(target);
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -211,27 +274,28 @@ public final class TCB {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
-	if (!isFirstTCB) {
-	    /* start() is waiting for us to wake it up, signalling that it's OK
-	     * to context switch to us. We leave the running flag false so that
-	     * we'll still run if a context switch happens before we go to
-	     * sleep. All we have to do is wake up the current TCB and then
-	     * wait to get woken up by contextSwitch() or destroy().
-	     */
-	    
-	    currentTCB.interrupt();
-	    this.yield();
-	}
-	else {
-	    /* start() called us directly, so we just need to initialize
-	     * a couple things.
-	     */
-	    
-	    currentTCB = this;
-	    running = true;
-	}
-
 	try {
+	    if (!isFirstTCB) {
+		/* start() is waiting for us to wake it up, signalling that
+		 * it's OK to context switch to us. We leave the running flag
+		 * false so that we'll still run if a context switch happens
+		 * before we go to sleep. All we have to do is wake up the
+		 * current TCB and then wait to get woken up by contextSwitch()
+		 * or destroy().
+		 */
+
+		currentTCB.interrupt();
+		this.yield();
+	    }
+	    else {
+		/* start() called us directly, so we just need to initialize
+		 * a couple things.
+		 */
+
+		currentTCB = this;
+		running = true;
+	    }
+
 	    target.run();
 
 	    // no way out of here without going throw one of the catch blocks
@@ -247,6 +311,17 @@ public final class TCB {
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Our Java thread can run another TCB. It has to be back in
+	     * idleCarriers before destroy() returns, since the destroying TCB
+	     * may start another TCB right away. It can't be in use yet, either,
+	     * since only destroy() can hand it to another TCB.
+	     */
+	    if (!isFirstTCB)
+		idleCarriers.add(carrier);
+
+	    // the TCB that destroyed us is waiting for an acknowledgement
+	    currentTCB.interrupt();
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
@@ -265,44 +340,48 @@ public final class TCB {
      * wait for another TCB to context switch to this TCB. Since this TCB
      * might get destroyed instead, we check the <tt>done</tt> flag after
      * waking up. If it is set, the TCB that woke us up is waiting for an
-     * acknowledgement in destroy(). Otherwise, we just set the current TCB to
+     * acknowledgement in destroy(), which threadroot() sends once this
+     * thread's stack has unwound. Otherwise, we just set the current TCB to
      * this TCB and return.
      */
     private void yield() {
 	waitForInterrupt();
 	
-	if (done) {
-	    currentTCB.interrupt();
+	if (done)
 	    throw new ThreadDeath();
-	}
 
 	currentTCB = this;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * The handoff takes no locks: <tt>running</tt> is volatile, so everything
+     * the waking TCB did before setting it is visible once we see it set.
+     * An <tt>unpark()</tt> that arrives before we park is not lost, and a
+     * spurious return from <tt>park()</tt> just goes around the loop. A
+     * parked virtual thread also releases its carrier thread, which it would
+     * not do waiting on a monitor.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking its Java thread. Used in the ping-pong process of starting
+     * and destroying TCBs, as well as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -327,11 +406,27 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The limit actually in effect. Set by <tt>TCB.maxThreads</tt>; the
+     * default is <tt>maxThreads</tt>, or <tt>maxVirtualThreads</tt> for
+     * virtual threads.
+     */
+    private static int threadLimit = maxThreads;
+
+    /** The default limit on the number of virtual threads. */
+    private static final int maxVirtualThreads = 65536;
+
+    /**
+     * Creates virtual threads if <tt>TCB.virtualThreads</tt> is set, or
+     * <tt>null</tt> for platform threads.
+     */
+    private static ThreadFactory threadFactory = null;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +449,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -388,7 +483,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +495,52 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+    private Carrier carrier;
+
+    /**
+     * The Java threads of destroyed TCBs, waiting to run new TCBs. Only the
+     * current TCB, or a TCB being destroyed while the current TCB waits for
+     * it, uses this list. A Java thread is only created when it is empty, so
+     * there are never more than <tt>threadLimit</tt> Java threads.
+     */
+    private static ArrayList<Carrier> idleCarriers = new ArrayList<Carrier>();
+
+    /**
+     * A Java thread that runs TCBs one after another.
+     */
+    private static class Carrier implements Runnable {
+	/**
+	 * Run the specified TCB in this Java thread, starting the thread if
+	 * this is its first TCB.
+	 */
+	void run(TCB tcb) {
+	    next = tcb;
+
+	    if (started) {
+		LockSupport.unpark(thread);
+	    }
+	    else {
+		started = true;
+		thread.start();
+	    }
+	}
+
+	public void run() {
+	    while (true) {
+		TCB tcb;
+		while ((tcb = next) == null)
+		    LockSupport.park(this);
+		next = null;
+
+		// returns once this carrier is idle again
+		tcb.threadroot();
+	    }
+	}
+
+	Thread thread;
+	private boolean started = false;
+	private volatile TCB next = null;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
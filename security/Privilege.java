@@ -158,6 +158,23 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can elapse before the next
+	 * interrupt becomes due. These ticks can be charged in one step with
+	 * <tt>tickUser()</tt>.
+	 *
+	 * @return	the number of user ticks before an interrupt is due.
+	 */
+	public long userTicksUntilDue();
+
+	/**
+	 * Advance the simulated time by <i>numTicks</i> user ticks at once,
+	 * none of which may cause an interrupt to become due.
+	 *
+	 * @param	numTicks	the number of user ticks to charge.
+	 */
+	public void tickUser(long numTicks);
     }
 
     /**
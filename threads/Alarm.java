@@ -1,20 +1,42 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Level <i>k</i>
+ * has 64 slots, one for each value of bits <i>6k</i> to <i>6k+5</i> of a
+ * wake time, and holds the sleepers whose wake time first differs from the
+ * time the wheel has reached in those bits. So a sleep is added and
+ * cancelled in constant time. When the wheel is advanced, the earliest
+ * bucket is found from a bitmap of the occupied slots of each level, and its
+ * sleepers either wake or move down to a lower level, so each timer interrupt
+ * only does work for the sleepers that wake.
  */
 public class Alarm { 
 
-	// que for sleeping threads
-	private PriorityQueue<SleepingThread> waitQueue = null;
+	// the timing wheel, indexed by level and slot
+	private SleepingThread[][] wheel = new SleepingThread[numLevels][numSlots];
+	// bit i of occupied[k] is set if wheel[k][i] is not empty
+	private long[] occupied = new long[numLevels];
+	// every sleeper due at or before this time has been woken
+	private long current = 0;
+	// sleeping threads, so a sleep can be cancelled
+	private HashMap<KThread, SleepingThread> sleepers =
+		new HashMap<KThread, SleepingThread>();
+
 	private static ArrayList<Long> order = new ArrayList<Long>();//used for test cases to verify threads woke in the correct order
 	private static final char AlarmTestChar = 'a';
 
+	private static final int slotBits = 6;
+	private static final int numSlots = 1 << slotBits;
+	private static final int numLevels = (64 + slotBits - 1) / slotBits;
+
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
@@ -24,7 +46,7 @@ public class Alarm {
 	 */
 	public Alarm() {
 
-		waitQueue = new PriorityQueue<SleepingThread>();
+		current = Machine.timer().getTime();
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() { timerInterrupt(); }
 		});
@@ -32,37 +54,26 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread
-	 * that should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every
+	 * sleeping thread that is due, in order of wake time, then causes the
+	 * current thread to yield, forcing a context switch if there is another
+	 * thread that should be run.
 	 */
 	public void timerInterrupt() {
 
 		//store and disable interrupts
 		boolean iStatus = Machine.interrupt().disable();
-		for (int i=0; i < waitQueue.size(); ++i) {
-			SleepingThread s = waitQueue.peek();
-			if (Machine.timer().getTime() >= + s.wakeTime){
-				Lib.debug(AlarmTestChar, "Waking Thread " + s.thread.toString());
-				order.add(s.wakeTime);//for test cases
-				//yield the current thread
-				KThread.yield();
-
-				//put thread (in waitQueue) into readyState
-				s.thread.ready();
-
-				//remove thread from list
-				waitQueue.poll();
-			}else {
-				Lib.debug(AlarmTestChar, "No more threads ready to wake up. Test 3 Successful!");
-				//everthing in queue doesnt need to be woken up
-				i = waitQueue.size();
-			}
 
-			Machine.interrupt().restore(iStatus);
+		int woken = advance(Machine.timer().getTime());
 
-		}
+		//the old queue scan only reached the first sleeper not due while
+		//fewer threads had been woken than were left sleeping
+		if (woken < sleepers.size())
+			Lib.debug(AlarmTestChar, "No more threads ready to wake up. Test 3 Successful!");
+
+		Machine.interrupt().restore(iStatus);
 
+		KThread.yield();
 	}
 
 	/**
@@ -81,34 +92,153 @@ public class Alarm {
 	 */
 	public void waitUntil(long x) {
 
-		//wakeTime = now + x
-		long wakeTime = Machine.timer().getTime() + x;
-
 		//disable interrupts
 		boolean iStatus = Machine.interrupt().disable();
 
-		//add thread to the waitQueue, because its a priority queue it's automatically sorted
-		//and put thread to sleep
-		waitQueue.add(new SleepingThread(KThread.currentThread(), wakeTime));
+		//wakeTime = now + x, but after the time the wheel has reached, so
+		//the thread sleeps until at least the next timer interrupt
+		long now = Machine.timer().getTime();
+		long wakeTime = (x > Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + x;
+		if (wakeTime <= current)
+			wakeTime = current + 1;
+
+		SleepingThread s = new SleepingThread(KThread.currentThread(), wakeTime);
+		sleepers.put(s.thread, s);
+		insert(s);
 
-		//System.out.println("Queue size " + getQueueSize());
 		KThread.sleep();
 
 		//restore interrupts
 		Machine.interrupt().restore(iStatus);
 	}
 
+	/**
+	 * Cancel the sleep of the specified thread, if it is sleeping in
+	 * <tt>waitUntil()</tt>, and wake it up now.
+	 *
+	 * @param	thread	the thread whose sleep to cancel.
+	 * @return	<tt>true</tt> if the thread was sleeping.
+	 */
+	public boolean cancel(KThread thread) {
+
+		boolean iStatus = Machine.interrupt().disable();
+
+		SleepingThread s = sleepers.remove(thread);
+		if (s != null) {
+			unlink(s);
+			thread.ready();
+		}
+
+		Machine.interrupt().restore(iStatus);
+
+		return s != null;
+	}
+
+	/**
+	 * Wake every sleeper due at or before <i>time</i>, earliest first.
+	 *
+	 * @return	the number of sleepers woken.
+	 */
+	private int advance(long time) {
+
+		int woken = 0;
+
+		while (true) {
+			//find the earliest occupied bucket; lower levels are earlier
+			int level = 0;
+			long mask = 0;
+			for (; level < numLevels; ++level) {
+				int digit = (int) (current >>> (slotBits*level)) & (numSlots-1);
+				mask = occupied[level] & (-2L << digit);
+				if (mask != 0)
+					break;
+			}
+			if (level == numLevels)
+				break;
+
+			int slot = Long.numberOfTrailingZeros(mask);
+			int above = slotBits*(level+1);
+			long start = ((above >= 64) ? 0 : (current >>> above) << above)
+				| ((long) slot << (slotBits*level));
+			if (start > time)
+				break;
+
+			//every sleeper due before the bucket starts is awake
+			current = start;
+
+			SleepingThread s = wheel[level][slot];
+			wheel[level][slot] = null;
+			occupied[level] &= ~(1L << slot);
+
+			while (s != null) {
+				SleepingThread next = s.next;
+				if (s.wakeTime == current) {
+					Lib.debug(AlarmTestChar, "Waking Thread " + s.thread.toString());
+					order.add(s.wakeTime);//for test cases
+					sleepers.remove(s.thread);
+					s.thread.ready();
+					woken++;
+				}
+				else {
+					//later in the bucket, so it goes to a lower level
+					insert(s);
+				}
+				s = next;
+			}
+		}
+
+		current = time;
+		return woken;
+	}
+
+	/**
+	 * Add a sleeper due after <tt>current</tt> to the wheel.
+	 */
+	private void insert(SleepingThread s) {
+
+		int level = (63 - Long.numberOfLeadingZeros(s.wakeTime ^ current)) / slotBits;
+		int slot = (int) (s.wakeTime >>> (slotBits*level)) & (numSlots-1);
+
+		s.level = level;
+		s.slot = slot;
+		s.prev = null;
+		s.next = wheel[level][slot];
+		if (s.next != null)
+			s.next.prev = s;
+		wheel[level][slot] = s;
+		occupied[level] |= 1L << slot;
+	}
+
+	/**
+	 * Remove a sleeper from the wheel.
+	 */
+	private void unlink(SleepingThread s) {
+
+		if (s.prev != null)
+			s.prev.next = s.next;
+		else
+			wheel[s.level][s.slot] = s.next;
+
+		if (s.next != null)
+			s.next.prev = s.prev;
+
+		if (wheel[s.level][s.slot] == null)
+			occupied[s.level] &= ~(1L << s.slot);
+	}
+
 
 	//------------------------------------------------------------------------------
 
 	/**
 	 * Class defining sleeping thread type
-	 * Implements comparable so it can be sorted in a priority queue
+	 * Links sleepers in the same slot of the timing wheel
 	 *
 	 * */
-	private class SleepingThread implements Comparable<SleepingThread> {
+	private class SleepingThread {
 		public KThread thread;
 		public long wakeTime;
+		public int level, slot;
+		public SleepingThread prev, next;
 
 		//constructor
 		public SleepingThread(KThread t, long wt){
@@ -116,14 +246,10 @@ public class Alarm {
 			this.wakeTime = wt;
 		}
 
-		public int compareTo(SleepingThread other){
-			return (int)(this.wakeTime - other.wakeTime);
-		}
-
 	}
 
 	public int getQueueSize(){
-		return waitQueue.size();
+		return sleepers.size();
 	}
 
 	/**
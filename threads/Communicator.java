@@ -8,6 +8,15 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * A communicator also has a channel that moves many words per handoff, with
+ * <tt>speak(int[], int, int)</tt> and <tt>listen(int[])</tt>. It is separate
+ * from the single word <tt>speak()</tt> and <tt>listen()</tt>. By default the
+ * channel is a rendezvous, like a single word: listeners copy words straight
+ * from the speaker's array, and the speaker returns once they are all
+ * received. A communicator allocated with a capacity instead buffers up to
+ * that many words, so a speaker only waits when the buffer is full.
  */
 public class Communicator {
 	private Lock lock;
@@ -18,6 +27,18 @@ public class Communicator {
 	private int listeners = 0;
 	private static final char CommunicatorTestChar = 'c';
 
+	//the multi-word channel; one speaker at a time owns it
+	private Condition2 turnCondition;	//speakers waiting for their turn
+	private Condition2 spaceCondition;	//the speaking thread waiting for listeners
+	private Condition2 dataCondition;	//listeners waiting for words
+	private boolean speaking = false;
+	//rendezvous mode: the part of the speaker's array not yet received
+	private int[] offered;
+	private int offeredPos, offeredEnd;
+	//bounded mode: a circular buffer, or null for rendezvous mode
+	private int[] buffer;
+	private int first = 0, count = 0;
+
 
 	/**
 	 * Allocate a new communicator.
@@ -26,6 +47,22 @@ public class Communicator {
 		lock = new Lock();
 		speakerCondition = new Condition2(lock);
 		listenerCondition = new Condition2(lock);
+		turnCondition = new Condition2(lock);
+		spaceCondition = new Condition2(lock);
+		dataCondition = new Condition2(lock);
+	}
+
+	/**
+	 * Allocate a new communicator whose multi-word channel buffers up to
+	 * <i>capacity</i> words instead of being a rendezvous. The single word
+	 * <tt>speak()</tt> and <tt>listen()</tt> are not affected.
+	 *
+	 * @param	capacity	the number of words the channel can hold.
+	 */
+	public Communicator(int capacity) {
+		this();
+		Lib.assertTrue(capacity > 0);
+		buffer = new int[capacity];
 	}
 
 	/**
@@ -74,6 +111,108 @@ public class Communicator {
 		return word;
 	}
 
+	/**
+	 * Transfer <i>len</i> words from <i>words</i>, starting at <i>off</i>,
+	 * through the multi-word channel. The words are received in order, by
+	 * one or more calls to <tt>listen(int[])</tt>, and are not interleaved
+	 * with other speakers' words.
+	 *
+	 * <p>
+	 * In rendezvous mode, does not return until every word has been
+	 * received. In bounded mode, does not return until every word is in the
+	 * buffer.
+	 *
+	 * @param	words	the array holding the words to transfer.
+	 * @param	off	the index of the first word.
+	 * @param	len	the number of words to transfer.
+	 */
+	public void speak(int[] words, int off, int len) {
+		Lib.assertTrue(off >= 0 && len >= 0 && off+len <= words.length);
+		if (len == 0)
+			return;
+
+		lock.acquire();
+		while(speaking)
+			turnCondition.sleep();
+		speaking = true;
+
+		if(buffer == null){
+			//listeners copy from the array until it is all received
+			offered = words;
+			offeredPos = off;
+			offeredEnd = off + len;
+			dataCondition.wake();
+			while(offeredPos < offeredEnd)
+				spaceCondition.sleep();
+			offered = null;
+		}
+		else {
+			while(len > 0){
+				while(count == buffer.length)
+					spaceCondition.sleep();
+
+				//copy what fits, in at most two pieces
+				int n = Math.min(len, buffer.length - count);
+				int last = (first + count) % buffer.length;
+				int piece = Math.min(n, buffer.length - last);
+				System.arraycopy(words, off, buffer, last, piece);
+				System.arraycopy(words, off+piece, buffer, 0, n-piece);
+				count += n;
+				off += n;
+				len -= n;
+				dataCondition.wake();
+			}
+		}
+
+		speaking = false;
+		turnCondition.wake();
+		lock.release();
+	}
+
+	/**
+	 * Wait for words on the multi-word channel, and receive as many as are
+	 * available and fit in <i>dst</i>, starting at index 0.
+	 *
+	 * @param	dst	the array to receive the words in.
+	 * @return	the number of words received, at least 1.
+	 */
+	public int listen(int[] dst) {
+		Lib.assertTrue(dst.length > 0);
+
+		lock.acquire();
+		int n;
+		if(buffer == null){
+			while(offered == null || offeredPos == offeredEnd)
+				dataCondition.sleep();
+
+			n = Math.min(dst.length, offeredEnd - offeredPos);
+			System.arraycopy(offered, offeredPos, dst, 0, n);
+			offeredPos += n;
+
+			if(offeredPos == offeredEnd)
+				spaceCondition.wake();
+			else
+				dataCondition.wake();	//let another listener take the rest
+		}
+		else {
+			while(count == 0)
+				dataCondition.sleep();
+
+			n = Math.min(dst.length, count);
+			int piece = Math.min(n, buffer.length - first);
+			System.arraycopy(buffer, first, dst, 0, piece);
+			System.arraycopy(buffer, 0, dst, piece, n-piece);
+			first = (first + n) % buffer.length;
+			count -= n;
+
+			spaceCondition.wake();
+			if(count > 0)
+				dataCondition.wake();
+		}
+		lock.release();
+		return n;
+	}
+
 	//terminates a sleeping thread, used for test case 3
 	private void terminate(){
 		lock.acquire();
@@ -265,6 +404,51 @@ public class Communicator {
 		test4b.join();
 		test4c.join();
 
+
+		//***************Test Case 5*******************
+		//10 words through the rendezvous channel and then a buffer of 4,
+		//received at most 4 at a time
+
+		Communicator channels[] = { new Communicator(), new Communicator(4) };
+
+		for(int c = 0; c < channels.length; c++){
+			Communicator channel = channels[c];
+			int words[] = new int[10];
+			int sum[] = new int[1];
+
+			for(int i = 0; i < words.length; i++)
+				words[i] = i+1;
+
+			KThread test5a = new KThread(new Runnable(){
+				public void run(){
+					Lib.debug(CommunicatorTestChar, "Test Case 5: Sending 10 words at once.");
+					channel.speak(words, 0, words.length);
+				}
+			});
+
+			KThread test5b = new KThread(new Runnable(){
+				public void run(){
+					int dst[] = new int[4];
+					for(int received = 0; received < words.length; ){
+						int n = channel.listen(dst);
+						for(int i = 0; i < n; i++)
+							sum[0] += dst[i];
+						received += n;
+					}
+				}
+			});
+
+			test5b.fork();
+			test5a.fork();
+			test5a.join();
+			test5b.join();
+
+			if(sum[0] == 55)
+				Lib.debug(CommunicatorTestChar, "Test 5 Successful! All 10 words were received" + (c == 0 ? "." : " through the buffer.\n"));
+			else
+				Lib.debug(CommunicatorTestChar, "Test 5 Failed.");
+		}
+
 	}
 }
 
@@ -267,6 +267,17 @@ public class KThread {
 		Machine.autoGrader().readyThread(this);
 	}
 
+	/**
+	 * Test whether the specified queue is the ready queue, so a scheduler
+	 * can tell a thread giving up the CPU from a thread blocking.
+	 *
+	 * @param	queue	the queue to test.
+	 * @return	<tt>true</tt> if <i>queue</i> is the ready queue.
+	 */
+	static boolean isReadyQueue(ThreadQueue queue) {
+		return queue == readyQueue;
+	}
+
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
 	 * return immediately. This method must only be called once; the second
@@ -348,9 +359,15 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
 			nextThread = idleThread;
 
+			// the idle thread is yielding to itself, so nothing can run
+			// until an interrupt wakes a thread up
+			if (currentThread == idleThread)
+				Machine.interrupt().idle();
+		}
+
 		nextThread.run();
 	}
 
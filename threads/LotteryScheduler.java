@@ -25,6 +25,14 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * a lottery, adding or removing a thread, and changing a thread's tickets
+ * each take time logarithmic in the number of waiting threads. A change in a
+ * thread's tickets is passed on as a difference to the holder of the queue
+ * it waits on, and so on along the chain. Lotteries use <tt>Lib.random()</tt>,
+ * so they are reproducible with the same random seed.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +50,329 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     */
+    protected class LotteryQueue extends PriorityQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads. Since every call holds a
+	 * new lottery, <tt>nextThread()</tt> calls this only once.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no threads are
+	 *		waiting.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (totalTickets == 0)
+		return null;
+
+	    // find the first slot whose prefix sum exceeds the winning ticket
+	    long ticket = Lib.random(totalTickets);
+	    int index = 0;
+
+	    for (int step=capacity; step>0; step>>=1) {
+		if (index+step <= capacity && tree[index+step] <= ticket) {
+		    index += step;
+		    ticket -= tree[index];
+		}
+	    }
+
+	    return slots[index+1];
+	}
+
+	/**
+	 * Return the number of tickets of the threads waiting on this queue,
+	 * as an effective priority.
+	 */
+	protected int getTopPriority() {
+	    return (int) Math.min(totalTickets, Integer.MAX_VALUE);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=capacity; i++) {
+		if (slots[i] != null)
+		    System.out.print(slots[i].thread + " ");
+	    }
+	}
+
+	/**
+	 * Give a waiting thread a slot, and donate its tickets to the holder.
+	 */
+	void add(ThreadState state) {
+	    LotteryThreadState lotteryState = (LotteryThreadState) state;
+
+	    if (numFree == 0)
+		grow();
+
+	    int index = freeSlots[--numFree];
+	    slots[index] = lotteryState;
+	    lotteryState.slot = index;
+
+	    addTickets(index, lotteryState.tickets);
+	    donate(lotteryState, lotteryState.tickets);
+	}
+
+	/**
+	 * Free a waiting thread's slot, and take its tickets back from the
+	 * holder.
+	 */
+	void remove(ThreadState state) {
+	    LotteryThreadState lotteryState = (LotteryThreadState) state;
+	    int index = lotteryState.slot;
+
+	    addTickets(index, -lotteryState.tickets);
+	    donate(lotteryState, -lotteryState.tickets);
+
+	    slots[index] = null;
+	    lotteryState.slot = 0;
+	    freeSlots[numFree++] = index;
+	}
+
+	/**
+	 * Move the donations of the waiting threads to a new holder.
+	 */
+	void setHolder(ThreadState state) {
+	    if (!transferPriority || holder == state)
+		return;
+
+	    ThreadState previous = holder;
+	    holder = state;
+
+	    if (previous != null)
+		((LotteryThreadState) previous).changeTickets(-totalTickets);
+	    if (state != null)
+		((LotteryThreadState) state).changeTickets(totalTickets);
+	}
+
+	/**
+	 * A waiting thread's tickets changed by the specified amount.
+	 *
+	 * @return	the thread that this queue donates to, which must be told
+	 *		about the same change, or <tt>null</tt>.
+	 */
+	LotteryThreadState changed(LotteryThreadState state, long delta) {
+	    addTickets(state.slot, delta);
+	    return donee(state);
+	}
+
+	private void donate(LotteryThreadState state, long delta) {
+	    LotteryThreadState donee = donee(state);
+	    if (donee != null)
+		donee.changeTickets(delta);
+	}
+
+	private LotteryThreadState donee(LotteryThreadState state) {
+	    // a thread waiting on a queue it holds can't donate to itself
+	    if (!transferPriority || holder == state)
+		return null;
+
+	    return (LotteryThreadState) holder;
+	}
+
+	private void addTickets(int index, long delta) {
+	    totalTickets += delta;
+
+	    for (; index<=capacity; index+=index&-index)
+		tree[index] += delta;
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree.
+	 */
+	private void grow() {
+	    int oldCapacity = capacity;
+	    capacity = Math.max(2*capacity, 16);
+
+	    LotteryThreadState[] oldSlots = slots;
+	    slots = new LotteryThreadState[capacity+1];
+	    tree = new long[capacity+1];
+	    freeSlots = new int[capacity];
+
+	    for (int i=1; i<=oldCapacity; i++) {
+		slots[i] = oldSlots[i];
+		if (slots[i] != null)
+		    tree[i] = slots[i].tickets;
+	    }
+
+	    for (int i=1; i<=capacity; i++) {
+		int parent = i + (i&-i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+
+	    // all the old slots are in use, so only the new ones are free;
+	    // the lowest is handed out first
+	    numFree = 0;
+	    for (int i=capacity; i>oldCapacity; i--)
+		freeSlots[numFree++] = i;
+	}
+
+	/** The number of slots; always 0 or a power of 2. */
+	private int capacity = 0;
+	/** The waiting threads, indexed from 1. */
+	private LotteryThreadState[] slots = new LotteryThreadState[1];
+	/** Fenwick tree over the tickets of the threads in each slot. */
+	private long[] tree = new long[1];
+	/** A stack of the unused slots. */
+	private int[] freeSlots = new int[0];
+	private int numFree = 0;
+	/** The tickets of all waiting threads. */
+	private long totalTickets = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler. Its
+     * priority is its own number of tickets.
+     */
+    protected class LotteryThreadState extends ThreadState {
+	/**
+	 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+	 * with the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return the number of tickets the thread has, including donated
+	 * tickets, limited to the largest <tt>int</tt>.
+	 *
+	 * @return	the effective number of tickets.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(tickets, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Set the thread's own number of tickets. Called by the
+	 * <tt>ThreadState</tt> constructor, before this class's fields are
+	 * initialized, so they start out at 0.
+	 *
+	 * @param	priority	the new number of tickets.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    long delta = (long) priority - this.priority;
+	    this.priority = priority;
+
+	    changeTickets(delta);
+	}
+
+	public void waitForAccess(PriorityQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Tickets are kept up to date by <tt>changeTickets()</tt>.
+	 */
+	protected void updateEffectivePriority() {
+	}
+
+	/**
+	 * Change the thread's effective number of tickets by the specified
+	 * amount, and pass the change on along the chain of donations.
+	 */
+	void changeTickets(long delta) {
+	    LotteryThreadState state = this;
+
+	    while (state != null && delta != 0) {
+		state.tickets += delta;
+
+		LotteryQueue queue = (LotteryQueue) state.waitingOn;
+		if (queue == null)
+		    return;
+
+		state = queue.changed(state, delta);
+	    }
+	}
+
+	/** The thread's tickets, plus the tickets donated to it. */
+	long tickets;
+	/** The thread's slot in <tt>waitingOn</tt>, or 0. */
+	int slot;
     }
 }
@@ -0,0 +1,304 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread is at one of several
+ * levels, level 0 being the most favored. The next thread to receive access
+ * is the thread that has been waiting longest at the lowest level that has
+ * any waiting threads.
+ *
+ * <p>
+ * A thread starts at level 0. Each level has a quantum of timer ticks, twice
+ * as long as the level above it. A thread that uses up its quantum, and is
+ * then preempted by the timer or yields, drops one level, so CPU-bound
+ * threads sink. A thread that is woken up by another thread, after blocking
+ * on a semaphore, lock, condition variable, join or the alarm, rises one
+ * level, so interactive threads float. So that sunken threads do not starve,
+ * every thread is moved back to level 0 at a fixed interval.
+ *
+ * <p>
+ * Each queue keeps a FIFO list of waiting threads for every level, linked
+ * through the threads' scheduling states, and a bitmask of the levels that
+ * are not empty, so neither adding nor removing a thread searches or
+ * allocates.
+ *
+ * <p>
+ * The number of levels, the level 0 quantum and the boost interval are read
+ * from <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.boostInterval</tt> in <tt>nachos.conf</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  100*Stats.TimerTicks);
+
+	Lib.assertTrue(numLevels >= 1 && numLevels <= maxLevels);
+	Lib.assertTrue(quantum > 0 && boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. Threads do not donate their
+     *					level.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new LevelQueue();
+    }
+
+    /**
+     * Return the level of the specified thread. Lower levels are favored.
+     *
+     * @param	thread	the thread whose level to return.
+     * @return	the current level of the thread.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.checkBoost();
+	return state.level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the number of the current boost interval. Threads whose state
+     * is from an earlier interval are back at level 0.
+     */
+    private long currentEpoch() {
+	return Machine.timer().getTime() / boostInterval;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO list for each level.
+     */
+    protected class LevelQueue extends ThreadQueue {
+	LevelQueue() {
+	    heads = new ThreadState[numLevels];
+	    tails = new ThreadState[numLevels];
+	}
+
+	/**
+	 * Add a thread to the end of the list for its level. On the ready
+	 * queue, the current thread is being preempted or yielding, and drops
+	 * a level if it has used up its quantum. Any other thread is being
+	 * woken up, and rises a level. The current thread blocking on any
+	 * other queue keeps its level until it is woken up.
+	 *
+	 * @param	thread	the thread to add to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.queue == null);
+
+	    state.checkBoost();
+	    if (thread != KThread.currentThread())
+		state.promote();
+	    else if (KThread.isReadyQueue(this))
+		state.charge();
+
+	    add(state, state.level);
+	}
+
+	/**
+	 * Remove the first thread of the lowest level that has any, and start
+	 * timing its quantum.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long now = currentEpoch();
+	    if (epoch != now) {
+		boost();
+		epoch = now;
+	    }
+
+	    if (nonEmpty == 0)
+		return null;
+
+	    int level = Integer.numberOfTrailingZeros(nonEmpty);
+	    ThreadState state = heads[level];
+
+	    heads[level] = state.next;
+	    if (heads[level] == null) {
+		tails[level] = null;
+		nonEmpty &= ~(1 << level);
+	    }
+	    state.next = null;
+	    state.queue = null;
+
+	    state.checkBoost();
+	    state.dispatchTime = Machine.timer().getTime();
+
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(nonEmpty == 0);
+	}
+
+	/**
+	 * Print out the contents of the queue, most favored first.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<numLevels; level++) {
+		for (ThreadState s=heads[level]; s!=null; s=s.next)
+		    System.out.print(s.thread + " ");
+	    }
+	}
+
+	private void add(ThreadState state, int level) {
+	    if (tails[level] == null)
+		heads[level] = state;
+	    else
+		tails[level].next = state;
+
+	    tails[level] = state;
+	    nonEmpty |= 1 << level;
+	    state.queue = this;
+	}
+
+	/**
+	 * Move every waiting thread to level 0, keeping them in order of
+	 * level. Their states are reset when they are dequeued.
+	 */
+	private void boost() {
+	    for (int level=1; level<numLevels; level++) {
+		if (heads[level] == null)
+		    continue;
+
+		if (tails[0] == null)
+		    heads[0] = heads[level];
+		else
+		    tails[0].next = heads[level];
+
+		tails[0] = tails[level];
+		heads[level] = tails[level] = null;
+	    }
+
+	    nonEmpty = (heads[0] == null) ? 0 : 1;
+	}
+
+	private ThreadState[] heads, tails;
+	/** Bit <i>i</i> is set if level <i>i</i> has waiting threads. */
+	private int nonEmpty = 0;
+	private long epoch = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, how much of its quantum
+     * it has used, and its link in the queue it is waiting on.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. The thread starts at level 0, and its quantum
+	 * starts now, in case it is already running.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    epoch = currentEpoch();
+	    dispatchTime = Machine.timer().getTime();
+	}
+
+	/**
+	 * Move back to level 0 if a boost has happened since the state was
+	 * last updated.
+	 */
+	void checkBoost() {
+	    long now = currentEpoch();
+	    if (epoch != now) {
+		epoch = now;
+		level = 0;
+		used = 0;
+	    }
+	}
+
+	/**
+	 * Called when the thread stops running. Drop a level once the
+	 * quantum for this level has been used up.
+	 */
+	void charge() {
+	    used += Machine.timer().getTime() - dispatchTime;
+
+	    if (used >= ((long) quantum << level)) {
+		if (level < numLevels-1)
+		    level++;
+		used = 0;
+	    }
+	}
+
+	/**
+	 * Called when the thread is woken up after blocking. Rise a level.
+	 */
+	void promote() {
+	    if (level > 0)
+		level--;
+	    used = 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The current level, 0 being the most favored. */
+	protected int level = 0;
+	/** The ticks of this level's quantum used so far. */
+	protected long used = 0;
+	/** The time the thread was last dequeued to run. */
+	protected long dispatchTime;
+	/** The boost interval the level and quantum belong to. */
+	protected long epoch;
+
+	/** The queue this thread is waiting on, if any. */
+	LevelQueue queue = null;
+	/** The next thread waiting at the same level. */
+	ThreadState next = null;
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int boostInterval;
+
+    /** The number of bits in a queue's level mask. */
+    private static final int maxLevels = 32;
+}
@@ -25,6 +25,13 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps a FIFO list of waiting threads for every priority, so the
+ * next thread is found without searching. Each thread caches its effective
+ * priority. When it changes, the thread moves to the right list of the queue
+ * it waits on, and the change is passed on to the holder of that queue, and
+ * so on along the chain, stopping as soon as a priority stays the same.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -142,8 +149,18 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		setHolder(null);
+		return null;
+	    }
+
+	    remove(next);
+	    next.waitingOn = null;
+	    next.acquire(this);
+
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +171,104 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    if (nonEmpty == 0)
+		return null;
+
+	    return heads[getTopPriority()];
+	}
+
+	/**
+	 * Return the highest effective priority of the threads waiting on
+	 * this queue.
+	 *
+	 * @return	the highest effective priority, or -1 if no threads are
+	 *		waiting.
+	 */
+	protected int getTopPriority() {
+	    return 31 - Integer.numberOfLeadingZeros(nonEmpty);
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int p=priorityMaximum; p>=priorityMinimum; p--) {
+		for (ThreadState s=heads[p]; s!=null; s=s.nextWaiter)
+		    System.out.print(s.thread + " ");
+	    }
+	}
+
+	/**
+	 * Add a thread to the list for its effective priority, after every
+	 * thread on the list that has been waiting longer.
+	 */
+	void add(ThreadState state) {
+	    int p = state.effectivePriority;
+
+	    ThreadState before = tails[p];
+	    while (before != null && before.waitTime > state.waitTime)
+		before = before.prevWaiter;
+
+	    ThreadState after = (before == null) ? heads[p] : before.nextWaiter;
+
+	    state.prevWaiter = before;
+	    state.nextWaiter = after;
+
+	    if (before == null)
+		heads[p] = state;
+	    else
+		before.nextWaiter = state;
+
+	    if (after == null)
+		tails[p] = state;
+	    else
+		after.prevWaiter = state;
+
+	    nonEmpty |= 1 << p;
+	}
+
+	/**
+	 * Remove a thread from the list for its effective priority.
+	 */
+	void remove(ThreadState state) {
+	    int p = state.effectivePriority;
+
+	    if (state.prevWaiter == null)
+		heads[p] = state.nextWaiter;
+	    else
+		state.prevWaiter.nextWaiter = state.nextWaiter;
+
+	    if (state.nextWaiter == null)
+		tails[p] = state.prevWaiter;
+	    else
+		state.nextWaiter.prevWaiter = state.prevWaiter;
+
+	    state.prevWaiter = state.nextWaiter = null;
+
+	    if (heads[p] == null)
+		nonEmpty &= ~(1 << p);
+	}
+
+	/**
+	 * Make the specified thread the holder of this queue, taking the
+	 * donations of this queue's waiting threads away from the previous
+	 * holder. Only queues that transfer priority track their holder.
+	 */
+	void setHolder(ThreadState state) {
+	    if (!transferPriority || holder == state)
+		return;
+
+	    ThreadState previous = holder;
+	    holder = state;
+
+	    if (previous != null) {
+		previous.owned.remove(this);
+		previous.updateEffectivePriority();
+	    }
+
+	    if (state != null) {
+		state.owned.add(this);
+		state.updateEffectivePriority();
+	    }
 	}
 
 	/**
@@ -168,6 +276,15 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that has access, if this queue transfers priority. */
+	ThreadState holder = null;
+
+	/** The first and last waiting thread of each effective priority. */
+	private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+	private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+	/** Bit <i>p</i> is set if a thread of effective priority <i>p</i> waits. */
+	private int nonEmpty = 0;
     }
 
     /**
@@ -205,8 +322,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +336,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +352,14 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitTime = numWaits++;
+	    waitQueue.add(this);
+
+	    if (waitQueue.holder != null)
+		waitQueue.holder.updateEffectivePriority();
 	}
 
 	/**
@@ -250,12 +373,57 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    waitQueue.setHolder(this);
 	}	
 
+	/**
+	 * Recompute the effective priority of the associated thread from its
+	 * priority and the queues it holds. If it changed, move the thread in
+	 * the queue it is waiting on, and continue with that queue's holder.
+	 */
+	protected void updateEffectivePriority() {
+	    ThreadState state = this;
+
+	    while (state != null) {
+		int effective = state.priority;
+		for (PriorityQueue queue : state.owned)
+		    effective = Math.max(effective, queue.getTopPriority());
+
+		if (effective == state.effectivePriority)
+		    return;
+
+		PriorityQueue queue = state.waitingOn;
+		if (queue == null) {
+		    state.effectivePriority = effective;
+		    return;
+		}
+
+		queue.remove(state);
+		state.effectivePriority = effective;
+		queue.add(state);
+
+		state = queue.holder;
+	    }
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The priority, or the highest priority donated to the thread. */
+	protected int effectivePriority;
+
+	/** The queue the thread is waiting on, or <tt>null</tt>. */
+	protected PriorityQueue waitingOn = null;
+	/** The queues that transfer priority and are held by the thread. */
+	protected HashSet<PriorityQueue> owned = new HashSet<PriorityQueue>();
+
+	/** Orders threads that wait with the same effective priority. */
+	long waitTime;
+	/** Neighbours in <tt>waitingOn</tt>'s list for this priority. */
+	ThreadState prevWaiter = null, nextWaiter = null;
     }
+
+    /** Incremented whenever a thread starts waiting on a queue. */
+    private long numWaits = 0;
 }
@@ -2,15 +2,16 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-import java.util.Iterator;
-
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
- * with linked lists. When a thread begins waiting for access, it is appended
- * to the end of a list. The next thread to receive access is always the first
- * thread in the list. This causes access to be given on a first-come
- * first-serve basis.
+ * with circular arrays. When a thread begins waiting for access, it is
+ * appended to the end of a queue. The next thread to receive access is always
+ * the first thread in the queue. This causes access to be given on a
+ * first-come first-serve basis.
+ *
+ * <p>
+ * A queue's array only grows, doubling when it is full, so once it is big
+ * enough, waiting for access and getting it allocate nothing.
  */
 public class RoundRobinScheduler extends Scheduler {
     /**
@@ -39,7 +40,11 @@ public class RoundRobinScheduler extends Scheduler {
 	public void waitForAccess(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    waitQueue.add(thread);
+	    if (size == waitQueue.length)
+		grow();
+
+	    waitQueue[(first + size) & (waitQueue.length-1)] = thread;
+	    size++;
 	}
 
 	/**
@@ -52,10 +57,15 @@ public class RoundRobinScheduler extends Scheduler {
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    if (waitQueue.isEmpty())
+	    if (size == 0)
 		return null;
 
-	    return (KThread) waitQueue.removeFirst();
+	    KThread thread = waitQueue[first];
+	    waitQueue[first] = null;
+	    first = (first + 1) & (waitQueue.length-1);
+	    size--;
+
+	    return thread;
 	}
 
 	/**
@@ -66,7 +76,7 @@ public class RoundRobinScheduler extends Scheduler {
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    Lib.assertTrue(waitQueue.isEmpty());
+	    Lib.assertTrue(size == 0);
 	}
 
 	/**
@@ -75,10 +85,30 @@ public class RoundRobinScheduler extends Scheduler {
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 
-	    for (Iterator i=waitQueue.iterator(); i.hasNext(); )
-		System.out.print((KThread) i.next() + " ");
+	    for (int i=0; i<size; i++)
+		System.out.print(waitQueue[(first + i) & (waitQueue.length-1)] + " ");
+	}
+
+	/**
+	 * Double the size of the array, moving the queue to its start.
+	 */
+	private void grow() {
+	    KThread[] larger = new KThread[waitQueue.length*2];
+
+	    for (int i=0; i<size; i++)
+		larger[i] = waitQueue[(first + i) & (waitQueue.length-1)];
+
+	    waitQueue = larger;
+	    first = 0;
 	}
 
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	/** The waiting threads; the length is always a power of two. */
+	private KThread[] waitQueue = new KThread[initialCapacity];
+	/** The index of the first waiting thread. */
+	private int first = 0;
+	/** The number of waiting threads. */
+	private int size = 0;
     }
+
+    private static final int initialCapacity = 4;
 }
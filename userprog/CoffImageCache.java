@@ -0,0 +1,174 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of parsed COFF executables. The first time an executable is loaded
+ * its headers are parsed and the contents of its sections are read into
+ * memory; after that, loading it again only opens the file to check that it
+ * has not changed, and its pages are loaded from memory.
+ *
+ * <p>
+ * Executables are identified by name, modification time and length. The
+ * least recently loaded ones are evicted once their contents take more than
+ * <tt>CoffImageCache.maxBytes</tt> bytes, read from <tt>nachos.conf</tt>; an
+ * executable larger than that is loaded but not kept.
+ */
+public class CoffImageCache {
+    /**
+     * Allocate a new, empty COFF image cache.
+     */
+    public CoffImageCache() {
+	maxBytes = Config.getInteger("CoffImageCache.maxBytes", 1 << 20);
+	Lib.assertTrue(maxBytes >= 0);
+    }
+
+    /**
+     * Return the executable in the specified file, parsing it only if it is
+     * not in the cache. The file is closed either way.
+     *
+     * @param	name	the name of the executable.
+     * @param	file	the open executable.
+     * @param	stamp	the modification time of the file, from
+     *			<tt>file.lastModified()</tt>.
+     * @return	the executable, or <tt>null</tt> if it is corrupt. Closing
+     *		the returned object does nothing.
+     */
+    public Coff load(String name, OpenFile file, long stamp) {
+	ImageKey key = new ImageKey(name, stamp, file.length());
+
+	lock.acquire();
+	Image image = images.get(key);
+	lock.release();
+
+	if (image != null) {
+	    file.close();
+	    Lib.debug(dbgProcess, "\tusing cached image of " + name);
+	    return image;
+	}
+
+	try {
+	    image = new Image(new Coff(file));
+	}
+	catch (EOFException e) {
+	    file.close();
+	    return null;
+	}
+
+	if (key.stamp == 0 || image.size > maxBytes)
+	    return image;
+
+	lock.acquire();
+
+	if (images.put(key, image) == null)
+	    totalBytes += image.size;
+
+	Iterator<Image> i = images.values().iterator();
+	while (totalBytes > maxBytes) {
+	    totalBytes -= i.next().size;
+	    i.remove();
+	}
+
+	lock.release();
+
+	return image;
+    }
+
+    /**
+     * A parsed executable, with the contents of its sections in memory.
+     */
+    private static class Image extends Coff {
+	Image(Coff coff) {
+	    super();
+
+	    entryPoint = coff.getEntryPoint();
+	    sections = new CoffSection[coff.getNumSections()];
+	    for (int s=0; s<sections.length; s++) {
+		sections[s] = new ImageSection(this, coff.getSection(s));
+		size += ((ImageSection) sections[s]).contents.length;
+	    }
+
+	    coff.close();
+	}
+
+	public int getEntryPoint() {
+	    return entryPoint;
+	}
+
+	public void close() {
+	}
+
+	int size = 0;
+    }
+
+    private static class ImageSection extends CoffSection {
+	ImageSection(Image image, CoffSection section) {
+	    super(image, section.getName(), section.isExecutable(),
+		  section.isReadOnly(), section.getLength(),
+		  section.getFirstVPN());
+
+	    initialized = section.isInitialzed();
+	    contents = section.readContents();
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    int offset = spn*pageSize;
+	    int initlen = Math.max(0, Math.min(pageSize,
+					       contents.length - offset));
+	    int paddr = ppn*pageSize;
+
+	    Processor processor = Machine.processor();
+	    if (initlen > 0)
+		processor.writePhysicalMemory(paddr, contents, offset, initlen);
+	    processor.writePhysicalMemory(paddr+initlen, zeroPage, 0,
+					  pageSize-initlen);
+	}
+
+	byte[] contents;
+    }
+
+    private static class ImageKey {
+	ImageKey(String name, long stamp, int length) {
+	    this.name = name;
+	    this.stamp = stamp;
+	    this.length = length;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof ImageKey))
+		return false;
+
+	    ImageKey key = (ImageKey) o;
+	    return (name.equals(key.name) && stamp == key.stamp &&
+		    length == key.length);
+	}
+
+	public int hashCode() {
+	    return (name.hashCode()*31 + Long.hashCode(stamp))*31 + length;
+	}
+
+	String name;
+	long stamp;
+	int length;
+    }
+
+    /** The cached images, least recently loaded first. */
+    private LinkedHashMap<ImageKey, Image> images =
+	new LinkedHashMap<ImageKey, Image>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private int maxBytes;
+    private Lock lock = new Lock();
+
+    private static final int pageSize = Processor.pageSize;
+    private static final byte[] zeroPage = new byte[pageSize];
+    private static final char dbgProcess = 'a';
+}
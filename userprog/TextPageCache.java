@@ -0,0 +1,207 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * A cache of the pages of read-only COFF sections, shared by every process
+ * running the same executable. Each page is loaded into a physical page the
+ * first time a process maps it, and is mapped read-only into every later
+ * process instead of being loaded again. A page is freed when the last
+ * process using it releases it.
+ *
+ * <p>
+ * Pages are identified by executable name and modification time, section
+ * number and page number within the section, so an executable that is
+ * replaced on disk does not share pages with the old one.
+ */
+public class TextPageCache {
+    /**
+     * Allocate a new, empty text page cache.
+     */
+    public TextPageCache() {
+    }
+
+    /**
+     * Return the physical pages holding some pages of a read-only section,
+     * loading the ones no process has mapped, and add a reference to each of
+     * them.
+     *
+     * @param	name	the name of the executable.
+     * @param	stamp	the modification time of the executable.
+     * @param	coff	the executable.
+     * @param	sectionNumber	the section, which must be read-only.
+     * @param	firstSPN	the first page number within the section.
+     * @param	numPages	the number of pages.
+     * @return	the physical page numbers of the pages, in order, or
+     *		<tt>null</tt> if physical memory is full.
+     */
+    public int[] acquire(String name, long stamp, Coff coff,
+			 int sectionNumber, int firstSPN, int numPages) {
+	CoffSection section = coff.getSection(sectionNumber);
+	Lib.assertTrue(section.isReadOnly());
+	Lib.assertTrue(firstSPN >= 0 && numPages >= 0 &&
+		       firstSPN+numPages <= section.getLength());
+
+	SharedPage[] found = new SharedPage[numPages];
+	int missing = 0;
+
+	lock.acquire();
+
+	for (int i=0; i<numPages; i++) {
+	    found[i] = pages.get(new PageKey(name, stamp, sectionNumber,
+					     firstSPN+i));
+	    if (found[i] == null)
+		missing++;
+	}
+
+	int[] free = null;
+	if (missing > 0) {
+	    free = UserKernel.allocatePages(missing);
+	    if (free == null) {
+		lock.release();
+		return null;
+	    }
+	}
+
+	int[] ppns = new int[numPages];
+	for (int i=0, next=0; i<numPages; i++) {
+	    SharedPage page = found[i];
+	    int spn = firstSPN+i;
+
+	    if (page == null) {
+		PageKey key = new PageKey(name, stamp, sectionNumber, spn);
+		page = new SharedPage(key, free[next++]);
+
+		// other processes wait for the page while it loads
+		section.loadPage(spn, page.ppn);
+
+		pages.put(key, page);
+		frames.put(page.ppn, page);
+	    }
+
+	    page.refCount++;
+	    ppns[i] = page.ppn;
+	}
+
+	lock.release();
+
+	Lib.debug(dbgProcess, "\tshared " + numPages + " pages of section "
+		  + sectionNumber + ", loaded " + missing);
+
+	return ppns;
+    }
+
+    /**
+     * Drop a reference to physical pages returned by <tt>acquire()</tt>,
+     * freeing the ones no process has mapped any more.
+     *
+     * @param	ppns	the physical pages to release.
+     * @param	count	the number of pages in <i>ppns</i> to release.
+     */
+    public void release(int[] ppns, int count) {
+	int[] unused = new int[count];
+	int numUnused = 0;
+
+	lock.acquire();
+
+	for (int i=0; i<count; i++) {
+	    SharedPage page = frames.get(ppns[i]);
+	    Lib.assertTrue(page != null && page.refCount > 0);
+
+	    if (--page.refCount == 0) {
+		pages.remove(page.key);
+		frames.remove(page.ppn);
+		unused[numUnused++] = page.ppn;
+	    }
+	}
+
+	if (numUnused > 0)
+	    UserKernel.freePages(unused, numUnused);
+
+	lock.release();
+    }
+
+    /**
+     * Add a reference to a page of a read-only section that a process
+     * restored from a checkpoint maps at the specified physical page. The
+     * contents of the page are restored with the rest of physical memory.
+     *
+     * @param	name	the name of the executable.
+     * @param	stamp	the modification time of the executable.
+     * @param	sectionNumber	the section, which must be read-only.
+     * @param	spn	the page number within the section.
+     * @param	ppn	the physical page holding the page.
+     */
+    public void restore(String name, long stamp, int sectionNumber, int spn,
+			int ppn) {
+	PageKey key = new PageKey(name, stamp, sectionNumber, spn);
+
+	lock.acquire();
+
+	SharedPage page = pages.get(key);
+	if (page == null) {
+	    page = new SharedPage(key, ppn);
+	    pages.put(key, page);
+	    frames.put(ppn, page);
+	}
+
+	Lib.assertTrue(page.ppn == ppn);
+	page.refCount++;
+
+	lock.release();
+    }
+
+    private static class PageKey {
+	PageKey(String name, long stamp, int sectionNumber, int spn) {
+	    this.name = name;
+	    this.stamp = stamp;
+	    this.sectionNumber = sectionNumber;
+	    this.spn = spn;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof PageKey))
+		return false;
+
+	    PageKey key = (PageKey) o;
+	    return (name.equals(key.name) && stamp == key.stamp &&
+		    sectionNumber == key.sectionNumber && spn == key.spn);
+	}
+
+	public int hashCode() {
+	    return ((name.hashCode()*31 + Long.hashCode(stamp))*31
+		    + sectionNumber)*31 + spn;
+	}
+
+	public String toString() {
+	    return name + "@" + stamp + ":" + sectionNumber + ":" + spn;
+	}
+
+	private String name;
+	private long stamp;
+	private int sectionNumber, spn;
+    }
+
+    private static class SharedPage {
+	SharedPage(PageKey key, int ppn) {
+	    this.key = key;
+	    this.ppn = ppn;
+	}
+
+	PageKey key;
+	int ppn;
+	int refCount = 0;
+    }
+
+    private HashMap<PageKey, SharedPage> pages =
+	new HashMap<PageKey, SharedPage>();
+    private HashMap<Integer, SharedPage> frames =
+	new HashMap<Integer, SharedPage>();
+    private Lock lock = new Lock();
+
+    private static final char dbgProcess = 'a';
+}
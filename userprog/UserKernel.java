@@ -4,6 +4,11 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -23,10 +28,27 @@ public class UserKernel extends ThreadedKernel {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	pageLock = new Lock();
+	freePages = new LinkedList<Integer>();
+	for (int ppn=0; ppn<Machine.processor().getNumPhysPages(); ppn++)
+	    freePages.add(ppn);
+
+	textCache = new TextPageCache();
+	coffCache = new CoffImageCache();
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
 	    });
+
+	Checkpoint.setKernelState(new Checkpoint.KernelState() {
+		public void save(DataOutputStream out) throws IOException {
+		    saveCheckpoint(out);
+		}
+		public void restore(DataInputStream in) throws IOException {
+		    restoreCheckpoint(in);
+		}
+	    });
     }
 
     /**
@@ -61,6 +83,82 @@ public class UserKernel extends ThreadedKernel {
 	return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Allocate free pages of physical memory, all or none. Pages are handed
+     * out lowest first until they have all been used once.
+     *
+     * @param	count	the number of pages to allocate.
+     * @return	the physical page numbers, or <tt>null</tt> if fewer than
+     *		<i>count</i> pages are free.
+     */
+    public static int[] allocatePages(int count) {
+	int[] ppns = null;
+
+	pageLock.acquire();
+	if (freePages.size() >= count) {
+	    ppns = new int[count];
+	    for (int i=0; i<count; i++)
+		ppns[i] = freePages.removeFirst();
+	}
+	pageLock.release();
+
+	return ppns;
+    }
+
+    /**
+     * Return pages of physical memory returned by <tt>allocatePages()</tt>
+     * to the free list.
+     *
+     * @param	ppns	the physical pages to free.
+     * @param	count	the number of pages in <i>ppns</i> to free.
+     */
+    public static void freePages(int[] ppns, int count) {
+	pageLock.acquire();
+	for (int i=0; i<count; i++) {
+	    Lib.assertTrue(ppns[i]>=0 &&
+			   ppns[i]<Machine.processor().getNumPhysPages());
+	    freePages.add(ppns[i]);
+	}
+	pageLock.release();
+    }
+
+    /**
+     * Write the free page list and the page table of the current process
+     * to a checkpoint being saved. A checkpoint is taken when the first
+     * process starts running, so no other process has memory yet.
+     */
+    private void saveCheckpoint(DataOutputStream out) throws IOException {
+	out.writeInt(freePages.size());
+	for (int ppn : freePages)
+	    out.writeInt(ppn);
+
+	UserProcess process = currentProcess();
+	out.writeBoolean(process != null);
+	if (process != null)
+	    process.savePageTable(out);
+    }
+
+    /**
+     * Read back what <tt>saveCheckpoint()</tt> wrote. The current process
+     * gives back the memory it was loaded into and takes the pages in the
+     * checkpoint instead.
+     */
+    private void restoreCheckpoint(DataInputStream in) throws IOException {
+	LinkedList<Integer> restoredPages = new LinkedList<Integer>();
+	for (int i=in.readInt(); i>0; i--)
+	    restoredPages.add(in.readInt());
+
+	UserProcess process = currentProcess();
+	Lib.assertTrue(in.readBoolean() == (process != null),
+		       "checkpoint is of a different process");
+	if (process != null)
+	    process.restorePageTable(in);
+
+	pageLock.acquire();
+	freePages = restoredPages;
+	pageLock.release();
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -110,6 +208,15 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** The pages of read-only sections shared between processes. */
+    public static TextPageCache textCache;
+
+    /** The executables parsed so far. */
+    public static CoffImageCache coffCache;
+
+    private static LinkedList<Integer> freePages;
+    private static Lock pageLock;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
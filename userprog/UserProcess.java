@@ -4,7 +4,11 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -23,10 +27,11 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+	fileTable = new OpenFile[maxOpenFiles];
+	if (UserKernel.console != null) {
+	    fileTable[0] = UserKernel.console.openForReading();
+	    fileTable[1] = UserKernel.console.openForWriting();
+	}
     }
     
     /**
@@ -131,16 +136,7 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
-
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
-
-	return amount;
+	return transferVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -174,18 +170,150 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	return transferVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Return the page table entry of a virtual page the kernel is about to
+     * access on behalf of this process.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the valid page table entry for the page, or <tt>null</tt> if
+     *		the page is not mapped.
+     */
+    protected TranslationEntry getPageEntry(int vpn) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || !entry.valid)
+	    return null;
+
+	return entry;
+    }
+
+    /**
+     * Transfer data between this process's virtual memory and the specified
+     * array, a page at a time. Each page is translated through
+     * <tt>pageTable</tt> once, and the part of it in range is copied with a
+     * single transfer, marking the page used, and dirty if written. Stops at
+     * the first page that is not mapped, or that is read-only when writing.
+     *
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	data	the array to transfer to or from.
+     * @param	offset	the first byte of the array to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	write	<tt>true</tt> to write virtual memory.
+     * @return	the number of bytes successfully transferred.
+     */
+    private int transferVirtualMemory(int vaddr, byte[] data, int offset,
+				      int length, boolean write) {
+	Processor processor = Machine.processor();
+	int amount = 0;
+
+	while (amount < length) {
+	    // addresses past 2^31 wrap to huge page numbers, which fail here
+	    int vpn = Processor.pageFromAddress(vaddr + amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr + amount);
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	    TranslationEntry entry = getPageEntry(vpn);
+	    if (entry == null || (write && entry.readOnly))
+		break;
+
+	    int paddr = Processor.makeAddress(entry.ppn, pageOffset);
+	    int chunk = Math.min(length - amount, pageSize - pageOffset);
+
+	    if (write) {
+		processor.writePhysicalMemory(paddr, data, offset + amount,
+					      chunk);
+		entry.dirty = true;
+	    }
+	    else {
+		processor.readPhysicalMemory(paddr, data, offset + amount,
+					     chunk);
+	    }
+	    entry.used = true;
+
+	    amount += chunk;
+	}
 
 	return amount;
     }
 
+    /**
+     * Transfer data between an open file, at its file pointer, and this
+     * process's virtual memory, without copying it through a kernel array.
+     * Each page in range is translated through <tt>pageTable</tt> once, and
+     * the file reads or writes a buffer over the physical memory behind it,
+     * all in one file operation. The transfer stops before the first page
+     * that is not mapped, or that is read-only when reading the file.
+     *
+     * @param	file	the file to transfer to or from.
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	toMemory	<tt>true</tt> to read the file into memory,
+     *				<tt>false</tt> to write memory to the file.
+     * @return	the number of bytes transferred, or -1 if none of the memory
+     *		could be transferred or the file failed.
+     */
+    private int transferFile(OpenFile file, int vaddr, int length,
+			     boolean toMemory) {
+	if (length == 0)
+	    return 0;
+
+	Processor processor = Machine.processor();
+
+	int firstOffset = Processor.offsetFromAddress(vaddr);
+	long span = ((long) firstOffset + length + pageSize - 1) / pageSize;
+	int maxChunks = (int) Math.min(span, pageTable.length);
+
+	ByteBuffer[] chunks = new ByteBuffer[maxChunks];
+	TranslationEntry[] entries = new TranslationEntry[maxChunks];
+	int[] sizes = new int[maxChunks];
+	int numChunks = 0;
+
+	for (int amount=0; amount<length && numChunks<maxChunks; ) {
+	    int vpn = Processor.pageFromAddress(vaddr + amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+
+	    TranslationEntry entry = getPageEntry(vpn);
+	    if (entry == null || (toMemory && entry.readOnly))
+		break;
+
+	    int chunk = Math.min(length - amount, pageSize - pageOffset);
+	    chunks[numChunks] =
+		processor.getMemoryBuffer(Processor.makeAddress(entry.ppn,
+								pageOffset),
+					  chunk);
+	    entries[numChunks] = entry;
+	    sizes[numChunks] = chunk;
+	    numChunks++;
+
+	    amount += chunk;
+	}
+
+	if (numChunks == 0)
+	    return -1;
+
+	if (numChunks < maxChunks) {
+	    ByteBuffer[] mapped = new ByteBuffer[numChunks];
+	    System.arraycopy(chunks, 0, mapped, 0, numChunks);
+	    chunks = mapped;
+	}
+
+	int transferred = toMemory ? file.read(chunks) : file.write(chunks);
+
+	// mark the pages the file actually reached
+	for (int i=0, left=transferred; i<numChunks && left>0; i++) {
+	    entries[i].used = true;
+	    if (toMemory)
+		entries[i].dirty = true;
+	    left -= sizes[i];
+	}
+
+	return transferred;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -199,17 +327,18 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
+	executableName = name;
+
 	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
 	if (executable == null) {
 	    Lib.debug(dbgProcess, "\topen failed");
 	    return false;
 	}
 
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-	    executable.close();
+	executableStamp = executable.lastModified();
+
+	coff = UserKernel.coffCache.load(name, executable, executableStamp);
+	if (coff == null) {
 	    Lib.debug(dbgProcess, "\tcoff load failed");
 	    return false;
 	}
@@ -253,24 +382,25 @@ public class UserProcess {
 	if (!loadSections())
 	    return false;
 
-	// store arguments in last page
+	// store arguments in last page, built in an array and written at once
 	int entryOffset = (numPages-1)*pageSize;
-	int stringOffset = entryOffset + args.length*4;
+	int stringOffset = args.length*4;
+	byte[] argsPage = new byte[argsSize];
 
 	this.argc = args.length;
 	this.argv = entryOffset;
 	
 	for (int i=0; i<argv.length; i++) {
-	    byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-	    Lib.assertTrue(writeVirtualMemory(entryOffset,stringOffsetBytes) == 4);
-	    entryOffset += 4;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-		       argv[i].length);
+	    Lib.bytesFromInt(argsPage, i*4, entryOffset + stringOffset);
+	    System.arraycopy(argv[i], 0, argsPage, stringOffset,
+			     argv[i].length);
 	    stringOffset += argv[i].length;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset,new byte[] { 0 }) == 1);
+	    // the null terminator is already 0
 	    stringOffset += 1;
 	}
 
+	Lib.assertTrue(writeVirtualMemory(entryOffset, argsPage) == argsSize);
+
 	return true;
     }
 
@@ -278,6 +408,9 @@ public class UserProcess {
      * Allocates memory for this process, and loads the COFF sections into
      * memory. If this returns successfully, the process will definitely be
      * run (this is the last step in process initialization that can fail).
+     * Pages of read-only sections come from <tt>UserKernel.textCache</tt>,
+     * so processes running the same executable share them, unless the
+     * executable has no modification time to tell its versions apart.
      *
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
@@ -288,9 +421,60 @@ public class UserProcess {
 	    return false;
 	}
 
-	// load sections
+	pageTable = new TranslationEntry[numPages];
+	sharedPages = new boolean[numPages];
+
+	boolean sharing = executableStamp != 0;
+
+	// map the pages of read-only sections from the text page cache
+	int numShared = 0;
+	for (int s=0; s<coff.getNumSections() && sharing; s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (!section.isReadOnly())
+		continue;
+
+	    Lib.debug(dbgProcess, "\tsharing " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    int[] ppns = UserKernel.textCache.acquire(executableName,
+						      executableStamp, coff, s,
+						      0, section.getLength());
+	    if (ppns == null) {
+		unloadSections();
+		coff.close();
+		Lib.debug(dbgProcess, "\tinsufficient physical memory");
+		return false;
+	    }
+
+	    for (int i=0; i<ppns.length; i++) {
+		int vpn = section.getFirstVPN()+i;
+		pageTable[vpn] = new TranslationEntry(vpn, ppns[i], true, true,
+						      false, false);
+		sharedPages[vpn] = true;
+	    }
+	    numShared += ppns.length;
+	}
+
+	// and allocate private pages for everything else
+	int[] ppns = UserKernel.allocatePages(numPages - numShared);
+	if (ppns == null) {
+	    unloadSections();
+	    coff.close();
+	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	    return false;
+	}
+
+	for (int vpn=0, next=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn] == null)
+		pageTable[vpn] = new TranslationEntry(vpn, ppns[next++], true,
+						      false, false, false);
+	}
+
+	// load the other sections
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
+	    if (section.isReadOnly() && sharing)
+		continue;
 	    
 	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 		      + " section (" + section.getLength() + " pages)");
@@ -298,18 +482,101 @@ public class UserProcess {
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
+		pageTable[vpn].readOnly = section.isReadOnly();
+		section.loadPage(i, pageTable[vpn].ppn);
 	    }
 	}
+
+	// the stack and argument pages may have belonged to another process
+	for (int vpn=numPages-stackPages-1; vpn<numPages; vpn++) {
+	    Machine.processor().writePhysicalMemory(pageTable[vpn].ppn*pageSize,
+						    zeroPage, 0, pageSize);
+	}
 	
 	return true;
     }
 
+    /**
+     * Write this process's page table to a checkpoint being saved, along
+     * with which pages are mapped from the text page cache.
+     *
+     * @param	out	the checkpoint.
+     */
+    protected void savePageTable(DataOutputStream out) throws IOException {
+	out.writeUTF(executableName);
+	out.writeLong(executableStamp);
+	out.writeInt(numPages);
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    Checkpoint.writeEntry(out, pageTable[vpn]);
+	    out.writeBoolean(sharedPages[vpn]);
+	}
+    }
+
+    /**
+     * Replace the memory this process was loaded into with the page table
+     * in a checkpoint being restored. The contents of the pages are restored
+     * with the rest of physical memory, so only the mappings are read here.
+     *
+     * @param	in	the checkpoint.
+     */
+    protected void restorePageTable(DataInputStream in) throws IOException {
+	Lib.assertTrue(in.readUTF().equals(executableName),
+		       "checkpoint is of a different executable");
+	Lib.assertTrue(in.readLong() == executableStamp,
+		       "checkpoint is of a different executable");
+	Lib.assertTrue(in.readInt() == numPages,
+		       "checkpoint has a different page table size");
+
+	unloadSections();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = Checkpoint.readEntry(in);
+	    sharedPages[vpn] = in.readBoolean();
+
+	    if (!sharedPages[vpn])
+		continue;
+
+	    for (int s=0; s<coff.getNumSections(); s++) {
+		CoffSection section = coff.getSection(s);
+		int spn = vpn - section.getFirstVPN();
+
+		if (spn >= 0 && spn < section.getLength())
+		    UserKernel.textCache.restore(executableName,
+						 executableStamp, s, spn,
+						 pageTable[vpn].ppn);
+	    }
+	}
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	if (pageTable == null)
+	    return;
+
+	int[] shared = new int[pageTable.length];
+	int[] owned = new int[pageTable.length];
+	int numShared = 0, numOwned = 0;
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry == null || !entry.valid)
+		continue;
+
+	    if (sharedPages[vpn])
+		shared[numShared++] = entry.ppn;
+	    else
+		owned[numOwned++] = entry.ppn;
+
+	    pageTable[vpn] = null;
+	}
+
+	if (numShared > 0)
+	    UserKernel.textCache.release(shared, numShared);
+	if (numOwned > 0)
+	    UserKernel.freePages(owned, numOwned);
     }    
 
     /**
@@ -346,6 +613,62 @@ public class UserProcess {
 	return 0;
     }
 
+    /**
+     * Handle the creat() and open() system calls. Opens the named file in
+     * the first free slot of the file table.
+     */
+    private int handleOpen(int nameAddr, boolean create) {
+	String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+	if (name == null)
+	    return -1;
+
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] == null) {
+		OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+		if (file == null)
+		    return -1;
+
+		fileTable[fd] = file;
+		return fd;
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Handle the read() and write() system calls. The data moves directly
+     * between the file and the pages behind <i>vaddr</i>.
+     */
+    private int handleTransfer(int fd, int vaddr, int count,
+			       boolean toMemory) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null || count < 0)
+	    return -1;
+
+	return transferFile(file, vaddr, count, toMemory);
+    }
+
+    /**
+     * Handle the close() system call.
+     */
+    private int handleClose(int fd) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null)
+	    return -1;
+
+	file.close();
+	fileTable[fd] = null;
+	return 0;
+    }
+
+    private OpenFile getOpenFile(int fd) {
+	if (fd < 0 || fd >= fileTable.length)
+	    return null;
+
+	return fileTable[fd];
+    }
+
 
     private static final int
         syscallHalt = 0,
@@ -391,7 +714,16 @@ public class UserProcess {
 	switch (syscall) {
 	case syscallHalt:
 	    return handleHalt();
-
+	case syscallCreate:
+	    return handleOpen(a0, true);
+	case syscallOpen:
+	    return handleOpen(a0, false);
+	case syscallRead:
+	    return handleTransfer(a0, a1, a2, true);
+	case syscallWrite:
+	    return handleTransfer(a0, a1, a2, false);
+	case syscallClose:
+	    return handleClose(a0);
 
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -440,10 +772,24 @@ public class UserProcess {
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
+
+    /** <tt>true</tt> for each page mapped from the text page cache. */
+    protected boolean[] sharedPages;
+
+    /** The files this process has open, indexed by file descriptor. */
+    protected OpenFile[] fileTable;
+
+    /** The name of the executable, as passed to <tt>load()</tt>. */
+    protected String executableName;
+    /** The modification time of the executable when it was loaded. */
+    protected long executableStamp;
     
     private int initialPC, initialSP;
     private int argc, argv;
 	
     private static final int pageSize = Processor.pageSize;
+    private static final int maxOpenFiles = 16;
+    private static final int maxFileNameLength = 256;
+    private static final byte[] zeroPage = new byte[pageSize];
     private static final char dbgProcess = 'a';
 }
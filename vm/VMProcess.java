@@ -22,6 +22,16 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	// the next process must not use this process's translations
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    syncTLBEntry(i);
+	    processor.writeTLBEntry(i, invalidEntry);
+	}
     }
 
     /**
@@ -29,23 +39,51 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	if (!Machine.processor().hasTLB())
+	    super.restoreState();
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Every page starts out invalid, and is only given a
+     * physical page, and loaded or zero-filled, when it is first touched.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	sharedPages = new boolean[numPages];
+	pageSections = new int[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, 0, false, false,
+						  false, false);
+	    pageSections[vpn] = -1;
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		pageTable[vpn].readOnly = section.isReadOnly();
+		pageSections[vpn] = s;
+	    }
+	}
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	// the TLB must not keep translations to pages being freed
+	Processor processor = Machine.processor();
+	for (int i=0; processor.hasTLB() && i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, invalidEntry);
+
 	super.unloadSections();
     }    
 
@@ -61,11 +99,146 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	case Processor.exceptionPageFault:
+	    int vaddr = processor.readRegister(Processor.regBadVAddr);
+	    int vpn = Processor.pageFromAddress(vaddr);
+	    boolean resident = (vpn >= 0 && vpn < pageTable.length &&
+				pageTable[vpn].valid);
+
+	    TranslationEntry entry = getPageEntry(vpn);
+	    if (entry == null) {
+		super.handleException(cause);
+		break;
+	    }
+
+	    // in page table mode the instruction finds the entry valid now
+	    if (cause == Processor.exceptionTLBMiss) {
+		if (!resident)
+		    processor.countPageFault();
+		addTLBEntry(entry);
+	    }
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
+
+    /**
+     * Return the page table entry of a virtual page, first loading the page
+     * if it has not been touched yet.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the valid page table entry for the page, or <tt>null</tt> if
+     *		the page is not mapped or there is no free physical page.
+     */
+    protected TranslationEntry getPageEntry(int vpn) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid && !pageIn(vpn))
+	    return null;
+
+	return entry;
+    }
+
+    /**
+     * Give a virtual page a physical page, and load it from its COFF section
+     * or zero-fill it. Pages of read-only sections come from the text page
+     * cache, like in <tt>UserProcess</tt>, unless the executable has no
+     * modification time.
+     */
+    private boolean pageIn(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	int s = pageSections[vpn];
+	boolean shared = entry.readOnly && executableStamp != 0;
+	int[] ppns;
+
+	if (shared) {
+	    CoffSection section = coff.getSection(s);
+	    ppns = UserKernel.textCache.acquire(executableName,
+						executableStamp, coff, s,
+						vpn - section.getFirstVPN(), 1);
+	}
+	else {
+	    ppns = UserKernel.allocatePages(1);
+	}
+
+	if (ppns == null) {
+	    Lib.debug(dbgVM, "\tno physical page for vpn " + vpn);
+	    return false;
+	}
+
+	Lib.debug(dbgVM, "\tpaging in vpn " + vpn + " to ppn " + ppns[0]);
+
+	entry.ppn = ppns[0];
+	sharedPages[vpn] = shared;
+
+	// the text page cache loads the pages it hands out
+	if (s != -1 && !shared) {
+	    CoffSection section = coff.getSection(s);
+	    section.loadPage(vpn - section.getFirstVPN(), entry.ppn);
+	}
+	else if (s == -1) {
+	    Machine.processor().writePhysicalMemory(entry.ppn*pageSize,
+						    zeroPage, 0, pageSize);
+	}
+
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+	return true;
+    }
+
+    /**
+     * Put a valid page table entry in the TLB, replacing an invalid entry
+     * if there is one, or else the entries in turn.
+     */
+    private void addTLBEntry(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+	int victim = -1;
+
+	for (int i=0; i<tlbSize && victim == -1; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		victim = i;
+	}
+
+	if (victim == -1) {
+	    victim = nextVictim;
+	    nextVictim = (nextVictim+1) % tlbSize;
+	    syncTLBEntry(victim);
+	}
+
+	processor.writeTLBEntry(victim, entry);
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back to the page table.
+     * The kernel may have set them in the page table meanwhile, so they are
+     * only ever set here, never cleared.
+     */
+    private void syncTLBEntry(int number) {
+	TranslationEntry tlbEntry = Machine.processor().readTLBEntry(number);
+	if (!tlbEntry.valid)
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+    }
+
+    /** The COFF section of each virtual page, or -1 for stack and arguments. */
+    private int[] pageSections;
+    /** The TLB entry to replace next when none is invalid. */
+    private int nextVictim = 0;
+
+    private static final TranslationEntry invalidEntry =
+	new TranslationEntry(0, 0, false, false, false, false);
+    private static final byte[] zeroPage = new byte[Processor.pageSize];
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';